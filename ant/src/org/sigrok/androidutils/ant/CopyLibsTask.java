@@ -25,8 +25,12 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -34,6 +38,13 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.DynamicAttribute;
 import org.apache.tools.ant.Task;
@@ -62,11 +73,40 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 			return new BuildException(e);
 	}
 
-	private static int indexOf(byte[] data, byte v, int start)
+	private static <T> T await(Future<T> f) throws Exception
+	{
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof Exception)
+				throw (Exception)t;
+			throw e;
+		}
+	}
+
+	private static ByteBuffer slice(ByteBuffer b, long start, long end)
+	{
+		ByteBuffer d = b.duplicate();
+		d.limit((int)end);
+		d.position((int)start);
+		return d;
+	}
+
+	private static void write(FileChannel out, CRC32 crc, ByteBuffer b)
+		throws IOException
+	{
+		crc.update(b.duplicate());
+		while (b.hasRemaining())
+			out.write(b);
+	}
+
+	private static int indexOf(ByteBuffer data, byte v, int start)
 	{
 		if (data != null) {
-			for (int i = start; i < data.length; i++) {
-				if (data[i] == v)
+			int limit = data.limit();
+			for (int i = start; i < limit; i++) {
+				if (data.get(i) == v)
 					return i;
 			}
 		}
@@ -92,6 +132,8 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 	{
 		protected final File file;
 		protected final ElfFile elf;
+		protected final int machine;
+		protected final byte[] hash;
 		protected final HashSet<String> needed;
 		protected final Vector<String> rpath;
 		protected final TreeSet<Range> fixups;
@@ -99,6 +141,7 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 		protected String soname, destname;
 		protected final HashSet<Library> dependencies;
 		protected boolean dependedUpon;
+		protected int level;
 
 		protected class Range implements Comparable<Range>
 		{
@@ -150,20 +193,24 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 			}
 		}
 
-		private String getDynstr(ElfFile.Dynamic d, byte[] s,
+		private String getDynstr(ElfFile.Dynamic d, ByteBuffer s,
 					 long base) throws Exception
 		{
-			int offs = (int)d.d_val;
-			int nul = indexOf(s, (byte)0, offs);
+			long tag = d.d_tag();
+			int offs = (int)d.d_val();
+			int nul = (offs < 0 ? -1 : indexOf(s, (byte)0, offs));
 
 			if (nul < 0)
 				throw new Exception("Invalid dynamic string");
 
-			String name = new String(s, offs, nul-offs, "US-ASCII");
+			byte[] str = new byte[nul-offs];
+			for (int i = 0; i < str.length; i++)
+				str[i] = s.get(offs + i);
+			String name = new String(str, "US-ASCII");
 			offs += base;
 
-			if (d.d_tag == ElfFile.DT_RPATH ||
-			    d.d_tag == ElfFile.DT_RUNPATH) {
+			if (tag == ElfFile.DT_RPATH ||
+			    tag == ElfFile.DT_RUNPATH) {
 				// Zap rpath,
 				fixups.add(new Range(offs, offs + name.length()));
 			} else {
@@ -182,31 +229,42 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 		private void checkDynamic(ElfFile.SectionHeader dynsh,
 					ElfFile.SectionHeader strsh) throws Exception
 		{
-			byte strs[] = new byte[(int)strsh.sh_size];
-
-			elf.read(strsh, strs);
+			ByteBuffer strs = elf.read(strsh);
+			long base = strsh.sh_offset();
 
 			for (ElfFile.Dynamic d : elf.readDynamic(dynsh)) {
-				if (d.d_tag == ElfFile.DT_NULL)
+				long tag = d.d_tag();
+				if (tag == ElfFile.DT_NULL)
 					break;
-				else if (d.d_tag == ElfFile.DT_SONAME)
-					soname = getDynstr(d, strs, strsh.sh_offset);
-				else if (d.d_tag == ElfFile.DT_NEEDED)
-					addNeeded(getDynstr(d, strs, strsh.sh_offset));
-				else if (d.d_tag == ElfFile.DT_RPATH ||
-					 d.d_tag == ElfFile.DT_RUNPATH)
-					addRpath(getDynstr(d, strs, strsh.sh_offset));
+				else if (tag == ElfFile.DT_SONAME)
+					soname = getDynstr(d, strs, base);
+				else if (tag == ElfFile.DT_NEEDED)
+					addNeeded(getDynstr(d, strs, base));
+				else if (tag == ElfFile.DT_RPATH ||
+					 tag == ElfFile.DT_RUNPATH)
+					addRpath(getDynstr(d, strs, base));
 			}
 		}
 
 		private void checkElf() throws Exception
 		{
 			for (ElfFile.SectionHeader sh : elf.secHeaders) {
-				if (sh.sh_type == ElfFile.SHT_DYNAMIC)
-					checkDynamic(sh, elf.secHeaders[sh.sh_link]);
+				if (sh.sh_type() == ElfFile.SHT_DYNAMIC)
+					checkDynamic(sh, elf.secHeaders[sh.sh_link()]);
 			}
 		}
 
+		// The name to pass to System.loadLibrary().
+		protected String getLoadName()
+		{
+			String name = destname;
+			if (name.startsWith("lib"))
+				name = name.substring(3);
+			if (name.endsWith(".so"))
+				name = name.substring(0, name.length() - 3);
+			return name;
+		}
+
 		protected File getDestName(File dest)
 		{
 			File d = (subdir == null? dest : new File(dest, subdir));
@@ -214,71 +272,152 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 			return f;
 		}
 
+		// Identifies the patched library: the source contents plus
+		// everything that is changed on the way out.
+		protected byte[] outputDigest() throws Exception
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(hash != null ? hash : LibraryCache.digest(file));
+			for (Range rg : fixups) {
+				md.update(ByteBuffer.allocate(16).putLong(rg.start).
+					  putLong(rg.end).array());
+				if (rg.replacement != null)
+					md.update(rg.replacement);
+			}
+			return md.digest();
+		}
+
+		// The library is copied channel to channel, leaving it to the
+		// kernel where possible, and the fixups are then written over
+		// the copy.  They are applied last to first, so that where
+		// ranges overlap the first one wins.
 		protected void writeTo(File dest) throws IOException
 		{
 			FileInputStream is = new FileInputStream(file);
 			FileOutputStream os = new FileOutputStream(dest);
-			byte[] buf = new byte[65536];
-			TreeSet<Range> ranges = new TreeSet<Range>(fixups);
-			long offs = 0;
-
-			outer: for(;;) {
-				long next = offs + buf.length;
-				if (!ranges.isEmpty())
-					next = ranges.first().start;
-				if (next > offs) {
-					long chunk = next - offs;
-					if (chunk > buf.length)
-						chunk = buf.length;
-					int r = is.read(buf, 0, (int)chunk);
-					if (r < 0)
-						break;
-					os.write(buf, 0, r);
-					offs += r;
-					continue;
+
+			try {
+				FileChannel in = is.getChannel();
+				FileChannel out = os.getChannel();
+				long size = in.size(), offs = 0;
+
+				while (offs < size) {
+					long n = in.transferTo(offs, size - offs, out);
+					if (n <= 0)
+						throw new IOException("Short copy of " + file);
+					offs += n;
 				}
-				while (!ranges.isEmpty() && ranges.first().start <= offs) {
-					Range rg = ranges.pollFirst();
-					if (rg.end > offs) {
-						long chunk = rg.end - offs;
-						while (chunk > 0) {
-							int slice = (chunk > buf.length ? buf.length : (int)chunk);
-							int r = is.read(buf, 0, slice);
-							if (r < 0)
-								break outer;
-							if (r > 0) {
-								if (rg.replacement == null)
-									Arrays.fill(buf, 0, r, (byte)0);
-								else
-									System.arraycopy(rg.replacement, (int)(offs-rg.start), buf, 0, r);
-								os.write(buf, 0, r);
-								chunk -= r;
-							}
-						}
-						offs = rg.end;
+				for (Range rg : fixups.descendingSet()) {
+					if (rg.start >= size)
+						continue;
+					int len = (int)(Math.min(rg.end, size) - rg.start);
+					ByteBuffer buf = (rg.replacement == null ?
+						ByteBuffer.allocate(len) :
+						ByteBuffer.wrap(rg.replacement, 0, len));
+					while (buf.hasRemaining())
+						out.write(buf, rg.start + buf.position());
+				}
+			} finally {
+				os.close();
+				is.close();
+			}
+		}
+
+		// Writes the library as a stored entry, computing the CRC
+		// while the patched contents go out.
+		protected void writeTo(ZipWriter zip, String name, int align)
+			throws IOException
+		{
+			RandomAccessFile is = new RandomAccessFile(file, "r");
+
+			try {
+				FileChannel in = is.getChannel();
+				long size = in.size(), offs = 0;
+				MappedByteBuffer src =
+					in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				FileChannel out = zip.getChannel();
+				CRC32 crc = new CRC32();
+
+				zip.beginEntry(name, file.lastModified(), size, align);
+				for (Range rg : fixups) {
+					if (rg.start >= size)
+						break;
+					if (rg.end <= offs)
+						continue;
+					if (rg.start > offs) {
+						write(out, crc, slice(src, offs, rg.start));
+						offs = rg.start;
 					}
+					long end = Math.min(rg.end, size);
+					write(out, crc, (rg.replacement == null ?
+						ByteBuffer.allocate((int)(end - offs)) :
+						ByteBuffer.wrap(rg.replacement,
+							(int)(offs - rg.start),
+							(int)(end - offs))));
+					offs = end;
 				}
+				write(out, crc, slice(src, offs, size));
+				zip.endEntry(crc.getValue());
+			} finally {
+				is.close();
 			}
+		}
 
-			os.close();
-			is.close();
+		protected String getEntryName(String prefix)
+		{
+			String name = destname;
+			if (subdir != null)
+				name = subdir.replace(File.separatorChar, '/') + "/" + name;
+			if (prefix != null && prefix.length() > 0)
+				name = (prefix.endsWith("/") ? prefix : prefix + "/") + name;
+			return name;
 		}
 
 		protected Library(File f, String s) throws Exception
 		{
 			file = f;
 			subdir = s;
-			elf = new ElfFile(file);
 			needed = new HashSet<String>();
 			rpath = new Vector<String>();
 			fixups = new TreeSet<Range>();
-			soname = f.getName();
 			dependencies = new HashSet<Library>();
 			dependedUpon = false;
-			checkElf();
+			level = 0;
+			LibraryCache.Entry e = (cache == null ? null : cache.lookup(f));
+			if (e != null) {
+				elf = null;
+				machine = e.machine;
+				hash = e.hash;
+				soname = e.soname;
+				needed.addAll(e.needed);
+				rpath.addAll(e.rpath);
+				for (LibraryCache.Fixup fx : e.fixups)
+					fixups.add(new Range(fx.start, fx.end, fx.replacement));
+			} else {
+				elf = new ElfFile(file);
+				machine = elf.header.e_machine();
+				hash = (cache == null ? null : LibraryCache.digest(f));
+				soname = f.getName();
+				checkElf();
+				if (cache != null)
+					cache.store(toCacheEntry());
+			}
 			destname = fixSoname(soname);
 		}
 
+		protected LibraryCache.Entry toCacheEntry()
+		{
+			LibraryCache.Entry e =
+				new LibraryCache.Entry(file, hash, machine, soname);
+			ArrayList<String> need = new ArrayList<String>(needed);
+			Collections.sort(need);
+			e.needed.addAll(need);
+			e.rpath.addAll(rpath);
+			for (Range rg : fixups)
+				e.fixups.add(new LibraryCache.Fixup(rg.start, rg.end, rg.replacement));
+			return e;
+		}
+
 		protected Library(Resource r) throws Exception
 		{
 			this(r.as(FileProvider.class).getFile(),
@@ -300,6 +439,29 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 		protected final HashSet<Library> processedLibs;
 		protected final HashSet<String> allDests;
 		protected final Vector<String> rpath;
+		protected final String[] includePatterns, excludePatterns;
+		protected Vector<String> messages;
+		protected String orderedLibs;
+		protected String orderedLevels;
+		protected String dependencyList;
+		protected ArrayList<Library> output;
+
+		protected void log(String msg)
+		{
+			if (messages != null)
+				messages.add(msg);
+			else
+				CopyLibsTask.this.log(msg);
+		}
+
+		protected void flushLog()
+		{
+			if (messages == null)
+				return;
+			for (String msg : messages)
+				CopyLibsTask.this.log(msg);
+			messages = null;
+		}
 
 		protected void addWork(Library l)
 		{
@@ -333,83 +495,133 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 			l2.dependedUpon = true;
 		}
 
-		protected Library findLibInRpath(String s, String subdir)
+		protected Library findLibInRpath(String s, String subdir,
+						 Vector<String> rpath)
 			throws Exception
 		{
 			for (String p : rpath) {
 				File f = new File(p, s);
 				if (f.exists()) {
 					Library l = new Library(f, subdir);
-					if (l.elf.header.e_machine == machine)
+					if (l.machine == machine)
 						return l;
 				}
 			}
 			return null;
 		}
 
-		protected Library getLibForSoname(String s, String subdir)
-			throws Exception
+		protected boolean isExcluded(String s)
 		{
-			Library l = knownLibs.get(s);
-			if (l != null)
-				return l;
-			boolean include = false;
-			String[] includePatterns = patterns.getIncludePatterns(getProject());
 			if (includePatterns != null) {
 				for (String patt : includePatterns) {
-					if (SelectorUtils.match(patt, s)) {
-						include = true;
-						break;
-					}
+					if (SelectorUtils.match(patt, s))
+						return false;
 				}
 			}
-			if (!include) {
-				String[] excludePatterns = patterns.getExcludePatterns(getProject());
-				if (excludePatterns != null) {
-					for (String patt : excludePatterns) {
-						if (SelectorUtils.match(patt, s))
-							return null;
-					}
+			if (excludePatterns != null) {
+				for (String patt : excludePatterns) {
+					if (SelectorUtils.match(patt, s))
+						return true;
 				}
 			}
-			l = findLibInRpath(s, subdir);
-			if (l == null)
-				throw new Exception("Library " + s + " not found");
-			addWork(l);
-			return l;
+			return false;
 		}
 
-		protected void process(Library l) throws Exception
+		protected Future<Library> lookup(final String s, final String subdir,
+						 final Vector<String> rp)
 		{
-			if (processedLibs.contains(l))
-				return; // Already processed.
-			processedLibs.add(l);
-			addRpath(l.rpath);
-			for (String need : l.needed)
-				setDependency(l, getLibForSoname(need, l.subdir));
+			return pool.submit(new Callable<Library>() {
+				public Library call() throws Exception
+				{
+					return findLibInRpath(s, subdir, rp);
+				}
+			});
 		}
 
+		// Processes the work queue one generation at a time.  The
+		// rpath probing and ELF parsing of all libraries needed by a
+		// generation is done in the pool, while the bookkeeping is
+		// done afterwards on this thread, in soname order, so that
+		// the results (and errors) don't depend on scheduling.
+		protected void resolve() throws Exception
+		{
+			while (!workQueue.isEmpty()) {
+				ArrayList<Library> wave = new ArrayList<Library>(workQueue);
+				workQueue.clear();
+				Collections.sort(wave);
+				HashMap<Library,ArrayList<String>> needs =
+					new HashMap<Library,ArrayList<String>>();
+				HashMap<String,Future<Library>> pending =
+					new HashMap<String,Future<Library>>();
+				for (Library l : wave) {
+					ArrayList<String> need = new ArrayList<String>(l.needed);
+					Collections.sort(need);
+					needs.put(l, need);
+					addRpath(l.rpath);
+					Vector<String> rp = null;
+					for (String s : need) {
+						if (knownLibs.containsKey(s) ||
+						    pending.containsKey(s) || isExcluded(s))
+							continue;
+						if (rp == null)
+							rp = new Vector<String>(rpath);
+						pending.put(s, lookup(s, l.subdir, rp));
+					}
+				}
+				HashSet<String> consumed = new HashSet<String>();
+				for (Library l : wave) {
+					if (!processedLibs.add(l))
+						continue; // Already processed.
+					for (String s : needs.get(l)) {
+						Library dep = knownLibs.get(s);
+						if (dep == null) {
+							Future<Library> f = pending.get(s);
+							if (f == null)
+								continue; // Dependency on external lib.
+							dep = await(f);
+							if (dep == null)
+								throw new Exception("Library " + s + " not found");
+							if (!consumed.add(s))
+								throw new BuildException("Multiple libs with the same soname " + dep.soname);
+							addWork(dep);
+						}
+						setDependency(l, dep);
+					}
+				}
+			}
+		}
+
+		// Libraries get the level at which they become loadable, all
+		// libraries at one level only depend on lower levels.
 		protected Vector<Library> topoSort(HashSet<Library> libs)
 		{
 			Vector<Library> order = new Vector<Library>();
+			HashMap<Library,HashSet<Library>> remaining =
+				new HashMap<Library,HashSet<Library>>();
+			int level = 0;
 			for (Library chk : new HashSet<Library>(libs)) {
 				if (!chk.dependedUpon)
 					libs.remove(chk);
+				else
+					remaining.put(chk, new HashSet<Library>(chk.dependencies));
 			}
 			while (!libs.isEmpty()) {
 				HashSet<Library> leafs = new HashSet<Library>();
 				for (Library chk : new HashSet<Library>(libs)) {
-					if (chk.dependencies.isEmpty())
+					if (remaining.get(chk).isEmpty())
 						leafs.add(chk);
 				}
 				if (leafs.isEmpty())
 					throw new BuildException("Circular dependency found");
 				ArrayList<Library> llist = new ArrayList<Library>(leafs);
 				Collections.sort(llist);
+				for (Library l : llist)
+					l.level = level;
+				level++;
 				order.addAll(llist);
 				libs.removeAll(leafs);
 				for (Library l : libs)
-					l.dependencies.removeAll(leafs);
+					remaining.get(l).removeAll(leafs);
 			}
 			return order;
 		}
@@ -417,36 +629,72 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 		protected void execute() throws BuildException
 		{
 			try {
-				while (!workQueue.isEmpty())
-					process(workQueue.remove());
+				resolve();
 			} catch (Exception e) {
 				throw buildException(e);
 			}
-			if (property != null) {
+			if (property != null || levelProperty != null) {
 				Vector<Library> order =
 					topoSort(new HashSet<Library>(processedLibs));
 				StringBuilder sb = new StringBuilder();
+				StringBuilder lb = new StringBuilder();
 				for (Library l : order) {
-					String name = l.destname;
-					if (name.startsWith("lib"))
-						name = name.substring(3);
-					if (name.endsWith(".so"))
-						name = name.substring(0, name.length() - 3);
+					String name = l.getLoadName();
 					sb.append("	<item>");
 					sb.append(name);
 					sb.append("</item>\n");
+					lb.append("	<item>");
+					lb.append(l.level);
+					lb.append("</item>\n");
+				}
+				orderedLibs = sb.toString();
+				orderedLevels = lb.toString();
+			}
+			if (depsProperty != null) {
+				ArrayList<Library> all = new ArrayList<Library>(processedLibs);
+				Collections.sort(all);
+				StringBuilder sb = new StringBuilder();
+				for (Library l : all) {
+					ArrayList<String> deps = new ArrayList<String>();
+					for (Library d : l.dependencies)
+						deps.add(d.getLoadName());
+					Collections.sort(deps);
+					sb.append("	<item>");
+					sb.append(l.getLoadName());
+					for (String d : deps) {
+						sb.append(' ');
+						sb.append(d);
+					}
+					sb.append("</item>\n");
+				}
+				dependencyList = sb.toString();
+			}
+			if (zipFile != null) {
+				// Written into the archive by the task.
+				output = new ArrayList<Library>(processedLibs);
+				Collections.sort(output);
+				return;
+			}
+			HashMap<Library,byte[]> digests = new HashMap<Library,byte[]>();
+			try {
+				for (Library chk : new HashSet<Library>(processedLibs)) {
+					File dest = chk.getDestName(destDir);
+					if (digestCheck) {
+						byte[] digest = chk.outputDigest();
+						if (dest.exists() &&
+							cache.isCurrent(dest, digest))
+							processedLibs.remove(chk);
+						else
+							digests.put(chk, digest);
+					} else if (dest.exists() &&
+						dest.lastModified() >= chk.file.lastModified())
+						processedLibs.remove(chk);
+					dest = dest.getParentFile();
+					if (!dest.exists())
+						dest.mkdirs();
 				}
-				String orderedLibs = sb.toString();
-				getProject().setNewProperty(property, orderedLibs);
-			}
-			for (Library chk : new HashSet<Library>(processedLibs)) {
-				File dest = chk.getDestName(destDir);
-				if (dest.exists() &&
-					dest.lastModified() >= chk.file.lastModified())
-					processedLibs.remove(chk);
-				dest = dest.getParentFile();
-				if (!dest.exists())
-					dest.mkdirs();
+			} catch (Exception e) {
+				throw buildException(e);
 			}
 			if (processedLibs.isEmpty())
 				return;
@@ -454,36 +702,82 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 			ArrayList<Library> libs = new ArrayList<Library>(processedLibs);
 			Collections.sort(libs);
 			try {
-				for (Library l : libs)
-					l.writeTo(l.getDestName(destDir));
+				for (Library l : libs) {
+					File dest = l.getDestName(destDir);
+					l.writeTo(dest);
+					if (digestCheck)
+						cache.storeOutput(dest, digests.get(l));
+				}
 			} catch (Exception e) {
 				throw buildException(e);
 			}
 		}
 
-		protected Worker(int mach)
+		// The patterns are read up front, as PatternSet is not safe
+		// to use from several workers at once.
+		protected Worker(int mach, String[] includes, String[] excludes)
 		{
 			machine = mach;
+			includePatterns = includes;
+			excludePatterns = excludes;
 			workQueue = new LinkedList<Library>();
 			knownLibs = new HashMap<String,Library>();
 			processedLibs = new HashSet<Library>();
 			allDests = new HashSet<String>();
 			rpath = new Vector<String>();
+			messages = null;
+			orderedLibs = null;
+			orderedLevels = null;
+			dependencyList = null;
+			output = null;
 		}
 
 	};
 
 	protected File destDir = null; // The destination directory.
+	protected File zipFile = null; // Or the destination archive.
+	protected String zipPrefix = null;
+	// Libraries in an archive are stored page aligned, so that they can
+	// be mapped directly from it.  16 KiB covers devices with both 4 KiB
+	// and 16 KiB pages.
+	protected int alignment = 16384;
 	protected Vector<ResourceCollection> rcs = new Vector<ResourceCollection>();
 	protected PatternSet patterns = new PatternSet();
 	protected String property = null;
+	protected String levelProperty = null;
+	protected String depsProperty = null;
 	protected Vector<String> rpath = new Vector<String>();
+	protected int threads = 0;
+	protected boolean parallel = false;
+	protected ForkJoinPool pool = null;
+	protected File cacheFile = null;
+	protected LibraryCache cache = null;
+	protected boolean digestCheck = false;
 
 	public void setTodir(File destDir)
 	{
 		this.destDir = destDir;
 	}
 
+	public void setDestfile(File zipFile)
+	{
+		this.zipFile = zipFile;
+	}
+
+	public void setPrefix(String prefix)
+	{
+		zipPrefix = prefix;
+	}
+
+	public void setAlign(int align)
+	{
+		// The alignment, and the padding for it, have to fit in
+		// the 16-bit fields of the zip extra.
+		if (align < 4096 || align > 32768 || (align & (align - 1)) != 0)
+			throw new BuildException("copylibs align must be a power of two between 4096 and 32768");
+		alignment = align;
+	}
+
 	public void setDynamicAttribute(String name, String value)
 	{
 		if ("rpath-link".equals(name))
@@ -517,37 +811,187 @@ public class CopyLibsTask extends Task implements DynamicAttribute
 		property = prop;
 	}
 
+	public void setLevelproperty(String prop)
+	{
+		levelProperty = prop;
+	}
+
+	public void setDepsproperty(String prop)
+	{
+		depsProperty = prop;
+	}
+
+	public void setThreads(int threads)
+	{
+		this.threads = threads;
+	}
+
+	public void setCachefile(File cacheFile)
+	{
+		this.cacheFile = cacheFile;
+	}
+
+	public void setUptodate(String mode)
+	{
+		if ("mtime".equals(mode))
+			digestCheck = false;
+		else if ("digest".equals(mode))
+			digestCheck = true;
+		else
+			throw new BuildException("copylibs doesn't support uptodate=\"" + mode + "\"");
+	}
+
+	public void setParallel(boolean parallel)
+	{
+		this.parallel = parallel;
+	}
+
+	// Runs the workers for all machines at the same time.  Their log
+	// output is held back and emitted per machine once all are done.
+	protected void executeParallel(ArrayList<Worker> ws) throws BuildException
+	{
+		ExecutorService exec = Executors.newFixedThreadPool(ws.size());
+		ArrayList<Future<Worker>> results = new ArrayList<Future<Worker>>();
+		try {
+			for (final Worker w : ws) {
+				w.messages = new Vector<String>();
+				results.add(exec.submit(new Callable<Worker>() {
+					public Worker call() throws Exception
+					{
+						w.execute();
+						return w;
+					}
+				}));
+			}
+			BuildException failure = null;
+			for (Future<Worker> f : results) {
+				try {
+					await(f);
+				} catch (Exception e) {
+					if (failure == null)
+						failure = buildException(e);
+				}
+			}
+			for (Worker w : ws)
+				w.flushLog();
+			if (failure != null)
+				throw failure;
+		} finally {
+			exec.shutdownNow();
+		}
+	}
+
 	public void execute() throws BuildException
+	{
+		if ((destDir == null) == (zipFile == null))
+			throw new BuildException("copylibs needs exactly one of todir and destfile");
+		if (digestCheck && cacheFile == null)
+			throw new BuildException("copylibs needs a cachefile for uptodate=\"digest\"");
+		// The archive is written whole every time, so there is
+		// nothing a digest could save.
+		if (digestCheck && zipFile != null)
+			throw new BuildException("copylibs doesn't support uptodate=\"digest\" with destfile");
+		if (cacheFile != null)
+			cache = new LibraryCache(cacheFile);
+		pool = new ForkJoinPool(threads > 0 ? threads :
+			Runtime.getRuntime().availableProcessors());
+		try {
+			run();
+			if (cache != null) {
+				log("ELF cache: " + cache.getHits() + " hits, " +
+					cache.getMisses() + " misses");
+				cache.save();
+			}
+		} catch (IOException e) {
+			throw buildException(e);
+		} finally {
+			pool.shutdownNow();
+			pool = null;
+			cache = null;
+		}
+	}
+
+	protected void run() throws BuildException
 	{
 		HashMap<Integer,Worker> workers = new HashMap<Integer,Worker>();
+		ArrayList<Future<Library>> inputs = new ArrayList<Future<Library>>();
 		final int size = rcs.size();
 
 		for (int i = 0; i < size; i++) {
 			ResourceCollection rc = rcs.elementAt(i);
-			for (Resource r : rc) {
+			for (final Resource r : rc) {
 				if (!r.isExists()) {
 					String message = "Could not find library "
 						+ r.toLongString() + " to copy.";
 					throw new BuildException(message);
 				}
-				Library l;
-				try {
-					l = new Library(r);
-				} catch (Exception e) {
-					throw buildException(e);
-				}
-				Integer m = new Integer(l.elf.header.e_machine);
-				Worker w = workers.get(m);
-				if (w == null) {
-					workers.put(m, (w = new Worker(m.intValue())));
-					w.addRpath(rpath);
-				}
-				w.addWork(l);
+				inputs.add(pool.submit(new Callable<Library>() {
+					public Library call() throws Exception
+					{
+						return new Library(r);
+					}
+				}));
+			}
+		}
+		String[] includes = patterns.getIncludePatterns(getProject());
+		String[] excludes = patterns.getExcludePatterns(getProject());
+		for (Future<Library> f : inputs) {
+			Library l;
+			try {
+				l = await(f);
+			} catch (Exception e) {
+				throw buildException(e);
+			}
+			Integer m = new Integer(l.machine);
+			Worker w = workers.get(m);
+			if (w == null) {
+				workers.put(m, (w = new Worker(m.intValue(),
+					includes, excludes)));
+				w.addRpath(rpath);
 			}
+			w.addWork(l);
 		}
 		ArrayList<Integer> machines = new ArrayList<Integer>(workers.keySet());
 		Collections.sort(machines);
+		ArrayList<Worker> ws = new ArrayList<Worker>();
 		for (Integer m : machines)
-			workers.get(m).execute();
+			ws.add(workers.get(m));
+		if (parallel && ws.size() > 1) {
+			executeParallel(ws);
+		} else {
+			for (Worker w : ws)
+				w.execute();
+		}
+		for (Worker w : ws) {
+			if (property != null && w.orderedLibs != null)
+				getProject().setNewProperty(property, w.orderedLibs);
+			if (levelProperty != null && w.orderedLevels != null)
+				getProject().setNewProperty(levelProperty, w.orderedLevels);
+			if (depsProperty != null && w.dependencyList != null)
+				getProject().setNewProperty(depsProperty, w.dependencyList);
+		}
+		if (zipFile != null)
+			writeZip(ws);
+	}
+
+	protected void writeZip(ArrayList<Worker> ws) throws BuildException
+	{
+		int n = 0;
+		for (Worker w : ws)
+			n += w.output.size();
+		log("Writing " + n + " libraries into " + zipFile);
+		try {
+			ZipWriter zip = new ZipWriter(zipFile, false);
+			try {
+				for (Worker w : ws)
+					for (Library l : w.output)
+						l.writeTo(zip, l.getEntryName(zipPrefix), alignment);
+			} finally {
+				zip.close();
+			}
+		} catch (IOException e) {
+			zipFile.delete();
+			throw buildException(e);
+		}
 	}
 }
@@ -0,0 +1,123 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils.ant;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+// Compiles a device filter XML file into the table read by UsbSupplicant:
+//
+//   int magic, version, number of ID filters, number of other filters
+//   int packed (vid << 16 | pid) of each ID filter, sorted as unsigned
+//   int vid, pid, class, subclass, protocol of each other filter
+//
+// all big endian, with -1 for unspecified fields.
+public class DeviceFilterTask extends Task
+{
+	public static final int MAGIC = 0x53524446; // "SRDF"
+	public static final int VERSION = 1;
+
+	private static final String[] ATTRIBUTES = {
+		"vendor-id", "product-id", "class", "subclass", "protocol"
+	};
+
+	protected File srcFile = null;
+	protected File destFile = null;
+
+	public void setSrcfile(File srcFile)
+	{
+		this.srcFile = srcFile;
+	}
+
+	public void setDestfile(File destFile)
+	{
+		this.destFile = destFile;
+	}
+
+	private static int parse(Element e, String name)
+	{
+		String v = e.getAttribute(name);
+		return (v.length() == 0 ? -1 : Integer.parseInt(v.trim()));
+	}
+
+	public void execute() throws BuildException
+	{
+		if (srcFile == null || destFile == null)
+			throw new BuildException("devicefilter needs both srcfile and destfile");
+		if (destFile.exists() &&
+			destFile.lastModified() >= srcFile.lastModified())
+			return;
+		TreeSet<Long> ids = new TreeSet<Long>();
+		ArrayList<int[]> others = new ArrayList<int[]>();
+		try {
+			NodeList devs = DocumentBuilderFactory.newInstance().
+				newDocumentBuilder().parse(srcFile).
+				getElementsByTagName("usb-device");
+			for (int i = 0; i < devs.getLength(); i++) {
+				Element e = (Element)devs.item(i);
+				int[] f = new int[ATTRIBUTES.length];
+				for (int j = 0; j < f.length; j++)
+					f[j] = parse(e, ATTRIBUTES[j]);
+				if (f[0] >= 0 && f[0] <= 0xffff &&
+				    f[1] >= 0 && f[1] <= 0xffff &&
+				    f[2] == -1 && f[3] == -1 && f[4] == -1)
+					ids.add(Long.valueOf(((long)f[0] << 16) | f[1]));
+				else
+					others.add(f);
+			}
+		} catch (Exception e) {
+			throw new BuildException("Failed to parse " + srcFile, e);
+		}
+		log("Writing " + (ids.size() + others.size()) +
+			" device filters into " + destFile);
+		try {
+			File dir = destFile.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.exists())
+				dir.mkdirs();
+			DataOutputStream os = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(destFile)));
+			try {
+				os.writeInt(MAGIC);
+				os.writeInt(VERSION);
+				os.writeInt(ids.size());
+				os.writeInt(others.size());
+				for (Long id : ids)
+					os.writeInt((int)id.longValue());
+				for (int[] f : others)
+					for (int v : f)
+						os.writeInt(v);
+			} finally {
+				os.close();
+			}
+		} catch (Exception e) {
+			destFile.delete();
+			throw new BuildException(e);
+		}
+	}
+}
@@ -20,8 +20,11 @@
 package org.sigrok.androidutils.ant;
 
 import java.io.File;
-import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 class ElfFile
 {
@@ -78,167 +81,172 @@ class ElfFile
 	public static final int DT_PREINIT_ARRAY = 32;
 	public static final int DT_PREINIT_ARRAYSZ = 33;
 
-	protected final RandomAccessFile file;
+	protected final MappedByteBuffer buf;
 	protected final boolean bit64, little;
 	public final Header header;
 	public final SectionHeader[] secHeaders;
 
-	protected short swap(short s)
+	protected short getHalf(long offs)
 	{
-		return (little ? (short)(((s & 0xff) << 8) | ((s >> 8) & 0xff)) : s);
+		return buf.getShort((int)offs);
 	}
 
-	protected int swap(int i)
+	protected int getWord(long offs)
 	{
-		return (little ? (((i & 0xff) << 24) | ((i & 0xff00) << 8) |
-				((i >> 8) & 0xff00) | ((i >> 24) & 0xff)) : i);
+		return buf.getInt((int)offs);
 	}
 
-	protected long swap(long l)
+	protected long getXword(long offs)
 	{
-		return (little?	((((long)swap((int)(l & 0xffffffffL))) << 32) |
-				(((long)swap((int)((l >> 32) & 0xffffffffL))) & 0xffffffffL)) : l);
+		return buf.getLong((int)offs);
 	}
 
-	protected short getHalf() throws IOException
+	protected long getAddr(long offs)
 	{
-		return swap(file.readShort());
+		return (bit64 ? getXword(offs) : getWord(offs));
 	}
 
-	protected int getWord() throws IOException
+	protected long getOff(long offs)
 	{
-		return swap(file.readInt());
+		return (bit64 ? getXword(offs) : getWord(offs));
 	}
 
-	protected long getXword() throws IOException
-	{
-		return swap(file.readLong());
-	}
+	// The structures below are views into the mapped file; fields are
+	// only decoded when they are asked for.
 
-	protected long getAddr() throws IOException
+	public class Header
 	{
-		return (bit64? getXword() : getWord());
-	}
+		private final int a = (bit64 ? 8 : 4);
 
-	protected long getOff() throws IOException
-	{
-		return (bit64 ? getXword() : getWord());
-	}
+		public byte[] e_ident()
+		{
+			byte[] ident = new byte[16];
+			for (int i = 0; i < ident.length; i++)
+				ident[i] = buf.get(i);
+			return ident;
+		}
 
-	public class Header
-	{
-		public final byte[] e_ident;
-		public final short e_type, e_machine;
-		public final int e_version;
-		public final long e_entry, e_phoff, e_shoff;
-		public final int e_flags;
-		public final short e_ehsize, e_phentsize, e_phnum;
-		public final short e_shentsize, e_shnum, e_shstrndx;
-
-		private Header(byte[] ident) throws IOException
+		public short e_type() { return getHalf(16); }
+		public short e_machine() { return getHalf(18); }
+		public int e_version() { return getWord(20); }
+		public long e_entry() { return getAddr(24); }
+		public long e_phoff() { return getOff(24 + a); }
+		public long e_shoff() { return getOff(24 + 2 * a); }
+		public int e_flags() { return getWord(24 + 3 * a); }
+		public short e_ehsize() { return getHalf(28 + 3 * a); }
+		public short e_phentsize() { return getHalf(30 + 3 * a); }
+		public short e_phnum() { return getHalf(32 + 3 * a); }
+		public short e_shentsize() { return getHalf(34 + 3 * a); }
+		public short e_shnum() { return getHalf(36 + 3 * a); }
+		public short e_shstrndx() { return getHalf(38 + 3 * a); }
+
+		private Header()
 		{
-			e_ident = ident;
-			e_type = getHalf();
-			e_machine = getHalf();
-			e_version = getWord();
-			e_entry = getAddr();
-			e_phoff = getOff();
-			e_shoff = getOff();
-			e_flags = getWord();
-			e_ehsize = getHalf();
-			e_phentsize = getHalf();
-			e_phnum = getHalf();
-			e_shentsize = getHalf();
-			e_shnum = getHalf();
-			e_shstrndx = getHalf();
 		}
 	}
 
 	public class SectionHeader
 	{
-		public final int sh_name, sh_type;
-		public final long sh_flags, sh_addr, sh_offset, sh_size;
-		public final int sh_link, sh_info;
-		public final long sh_addralign, sh_entsize;
-
-		private SectionHeader() throws IOException
+		private final long base;
+		private final int x = (bit64 ? 8 : 4);
+
+		public int sh_name() { return getWord(base); }
+		public int sh_type() { return getWord(base + 4); }
+		public long sh_flags() { return (bit64 ? getXword(base + 8) : getWord(base + 8)); }
+		public long sh_addr() { return getAddr(base + 8 + x); }
+		public long sh_offset() { return getOff(base + 8 + 2 * x); }
+		public long sh_size() { return (bit64 ? getXword(base + 8 + 3 * x) : getWord(base + 8 + 3 * x)); }
+		public int sh_link() { return getWord(base + 8 + 4 * x); }
+		public int sh_info() { return getWord(base + 12 + 4 * x); }
+		public long sh_addralign() { return (bit64 ? getXword(base + 16 + 4 * x) : getWord(base + 16 + 4 * x)); }
+		public long sh_entsize() { return (bit64 ? getXword(base + 16 + 5 * x) : getWord(base + 16 + 5 * x)); }
+
+		private SectionHeader(long base)
 		{
-			sh_name = getWord();
-			sh_type = getWord();
-			sh_flags = (bit64 ? getXword() : getWord());
-			sh_addr = getAddr();
-			sh_offset = getOff();
-			sh_size = (bit64 ? getXword() : getWord());
-			sh_link = getWord();
-			sh_info = getWord();
-			if (bit64) {
-				sh_addralign = getXword();
-				sh_entsize = getXword();
-			} else {
-				sh_addralign = getWord();
-				sh_entsize = getWord();
-			}
+			this.base = base;
 		}
 	}
 
 	public class Dynamic
 	{
-		public final long d_tag, d_val;
+		private final long base;
 
-		private Dynamic() throws IOException
+		public long d_tag() { return (bit64 ? getXword(base) : getWord(base)); }
+		public long d_val() { return (bit64 ? getXword(base + 8) : getWord(base + 4)); }
+
+		private Dynamic(long base)
 		{
-			if (bit64) {
-				d_tag = getXword();
-				d_val = getXword();
-			} else {
-				d_tag = getWord();
-				d_val = getWord();
-			}
+			this.base = base;
 		}
 	}
 
-	public Dynamic[] readDynamic(SectionHeader sh) throws IOException
+	private void checkRange(long offs, long size) throws Exception
+	{
+		if (offs < 0 || size < 0 || offs > buf.capacity() ||
+			size > buf.capacity() - offs)
+			throw new Exception("Illegal read");
+	}
+
+	public Dynamic[] readDynamic(SectionHeader sh) throws Exception
 	{
-		file.seek(sh.sh_offset);
-		Dynamic[] dyn = new Dynamic[(int)(sh.sh_size / sh.sh_entsize)];
+		long offs = sh.sh_offset(), entsize = sh.sh_entsize();
+		if (entsize <= 0)
+			throw new Exception("Invalid dynamic section");
+		long count = sh.sh_size() / entsize;
+		if (count < 0 || count > Integer.MAX_VALUE)
+			throw new Exception("Invalid dynamic section");
+		checkRange(offs, count * entsize);
+		Dynamic[] dyn = new Dynamic[(int)count];
 		for (int i = 0; i < dyn.length; i++)
-			dyn[i] = new Dynamic();
+			dyn[i] = new Dynamic(offs + i * entsize);
 		return dyn;
 	}
 
-	public void read(SectionHeader sh, byte[] buf) throws Exception
+	public ByteBuffer read(SectionHeader sh) throws Exception
 	{
-		if (sh.sh_type == SHT_NOBITS || buf.length > sh.sh_size)
+		long offs = sh.sh_offset(), size = sh.sh_size();
+		if (sh.sh_type() == SHT_NOBITS)
 			throw new Exception("Illegal read");
-		file.seek(sh.sh_offset);
-		file.readFully(buf);
+		checkRange(offs, size);
+		ByteBuffer b = buf.duplicate();
+		b.limit((int)(offs + size));
+		b.position((int)offs);
+		return b.slice().order(buf.order());
 	}
 
 	public ElfFile(File f) throws Exception
 	{
-		file = new RandomAccessFile(f, "r");
-		file.seek(0);
-		byte[] ident = new byte[16];
-		file.readFully(ident);
-		if (ident[0] != 0x7f || ident[1] != 'E' ||
-			ident[2] != 'L' || ident[3] != 'F')
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = file.getChannel();
+			if (ch.size() > Integer.MAX_VALUE)
+				throw new Exception("ELF file too large");
+			buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		} finally {
+			file.close();
+		}
+		if (buf.capacity() < 16 || buf.get(0) != 0x7f ||
+			buf.get(1) != 'E' || buf.get(2) != 'L' || buf.get(3) != 'F')
 			throw new Exception("ELF signature not found");
-		if (ident[4] == 1)
+		if (buf.get(4) == 1)
 			bit64 = false;
-		else if (ident[4] == 2)
+		else if (buf.get(4) == 2)
 			bit64 = true;
 		else
 			throw new Exception("Invalid ELF file class");
-		if (ident[5] == 1)
+		if (buf.get(5) == 1)
 			little = true;
-		else if (ident[5] == 2)
+		else if (buf.get(5) == 2)
 			little = false;
 		else
 			throw new Exception("Invalid ELF data encoding");
-		header = new Header(ident);
-		file.seek(header.e_shoff);
-		secHeaders = new SectionHeader[header.e_shnum];
-		for (int i = 0; i < header.e_shnum; i++)
-			secHeaders[i] = new SectionHeader();
+		buf.order(little ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		header = new Header();
+		int shentsize = header.e_shentsize() & 0xffff;
+		int shnum = header.e_shnum() & 0xffff;
+		checkRange(header.e_shoff(), (long)shentsize * shnum);
+		secHeaders = new SectionHeader[shnum];
+		for (int i = 0; i < shnum; i++)
+			secHeaders[i] = new SectionHeader(header.e_shoff() + (long)i * shentsize);
 	}
 }
@@ -0,0 +1,340 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils.ant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Vector;
+
+// Remembers what was learned from parsing a library, so that unchanged
+// libraries don't have to be parsed again on the next run.
+class LibraryCache
+{
+	private static final int MAGIC = 0x53454c46; // "SELF"
+	private static final int VERSION = 2;
+
+	public static class Fixup
+	{
+		public final long start, end;
+		public final byte[] replacement;
+
+		public Fixup(long start, long end, byte[] replacement)
+		{
+			this.start = start;
+			this.end = end;
+			this.replacement = replacement;
+		}
+	}
+
+	public static class Entry
+	{
+		public final String path;
+		public final long size;
+		public long mtime;
+		public final byte[] hash;
+		public final int machine;
+		public final String soname;
+		public final Vector<String> needed, rpath;
+		public final Vector<Fixup> fixups;
+
+		public Entry(File f, byte[] hash, int machine, String soname)
+		{
+			this(f.getAbsolutePath(), f.length(), f.lastModified(),
+				hash, machine, soname);
+		}
+
+		private Entry(String path, long size, long mtime, byte[] hash,
+			      int machine, String soname)
+		{
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+			this.hash = hash;
+			this.machine = machine;
+			this.soname = soname;
+			needed = new Vector<String>();
+			rpath = new Vector<String>();
+			fixups = new Vector<Fixup>();
+		}
+	}
+
+	// A library written by a previous run, and the digest of what
+	// it was written from.
+	private static class Output
+	{
+		public final long size, mtime;
+		public final byte[] digest;
+
+		public Output(long size, long mtime, byte[] digest)
+		{
+			this.size = size;
+			this.mtime = mtime;
+			this.digest = digest;
+		}
+	}
+
+	private final File file;
+	private final HashMap<String,Entry> entries;
+	private final HashMap<String,Output> outputs;
+	private boolean dirty;
+	private int hits, misses;
+
+	public static byte[] digest(File f) throws Exception
+	{
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			long size = ch.size(), offs = 0;
+			while (offs < size) {
+				long chunk = Math.min(size - offs, 1 << 28);
+				MappedByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, offs, chunk);
+				md.update(b);
+				offs += chunk;
+			}
+		} finally {
+			raf.close();
+		}
+		return md.digest();
+	}
+
+	public Entry lookup(File f) throws Exception
+	{
+		String path = f.getAbsolutePath();
+		long size = f.length(), mtime = f.lastModified();
+		Entry e;
+		synchronized (this) {
+			e = entries.get(path);
+			if (e != null && e.size == size && e.mtime == mtime) {
+				hits++;
+				return e;
+			}
+			if (e == null || e.size != size) {
+				misses++;
+				return null;
+			}
+		}
+		// Touched, but maybe not changed.  The digest is taken
+		// without the lock, so that parallel lookups don't queue
+		// up behind it.
+		boolean same = Arrays.equals(e.hash, digest(f));
+		synchronized (this) {
+			if (same) {
+				e.mtime = mtime;
+				dirty = true;
+				hits++;
+				return e;
+			}
+			misses++;
+			return null;
+		}
+	}
+
+	public synchronized void store(Entry e)
+	{
+		entries.put(e.path, e);
+		dirty = true;
+	}
+
+	public synchronized boolean isCurrent(File dest, byte[] digest)
+	{
+		Output o = outputs.get(dest.getAbsolutePath());
+		return (o != null && o.size == dest.length() &&
+			o.mtime == dest.lastModified() &&
+			Arrays.equals(o.digest, digest));
+	}
+
+	public synchronized void storeOutput(File dest, byte[] digest)
+	{
+		outputs.put(dest.getAbsolutePath(), new Output(dest.length(),
+			dest.lastModified(), digest));
+		dirty = true;
+	}
+
+	public synchronized int getHits()
+	{
+		return hits;
+	}
+
+	public synchronized int getMisses()
+	{
+		return misses;
+	}
+
+	private static String readString(DataInputStream is) throws IOException
+	{
+		return (is.readBoolean() ? is.readUTF() : null);
+	}
+
+	private static void writeString(DataOutputStream os, String s)
+		throws IOException
+	{
+		os.writeBoolean(s != null);
+		if (s != null)
+			os.writeUTF(s);
+	}
+
+	private static byte[] readBytes(DataInputStream is) throws IOException
+	{
+		int len = is.readInt();
+		if (len < 0)
+			return null;
+		byte[] b = new byte[len];
+		is.readFully(b);
+		return b;
+	}
+
+	private static void writeBytes(DataOutputStream os, byte[] b)
+		throws IOException
+	{
+		if (b == null) {
+			os.writeInt(-1);
+		} else {
+			os.writeInt(b.length);
+			os.write(b);
+		}
+	}
+
+	private void load() throws IOException
+	{
+		DataInputStream is = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file)));
+		try {
+			if (is.readInt() != MAGIC || is.readInt() != VERSION)
+				return;
+			int n = is.readInt();
+			for (int i = 0; i < n; i++) {
+				Entry e = new Entry(is.readUTF(), is.readLong(),
+					is.readLong(), readBytes(is), is.readInt(),
+					readString(is));
+				for (int j = is.readInt(); j > 0; --j)
+					e.needed.add(is.readUTF());
+				for (int j = is.readInt(); j > 0; --j)
+					e.rpath.add(is.readUTF());
+				for (int j = is.readInt(); j > 0; --j)
+					e.fixups.add(new Fixup(is.readLong(),
+						is.readLong(), readBytes(is)));
+				entries.put(e.path, e);
+			}
+			int m = is.readInt();
+			for (int i = 0; i < m; i++)
+				outputs.put(is.readUTF(), new Output(is.readLong(),
+					is.readLong(), readBytes(is)));
+		} finally {
+			is.close();
+		}
+	}
+
+	public synchronized void save() throws IOException
+	{
+		if (!dirty)
+			return;
+		ArrayList<String> paths = new ArrayList<String>();
+		for (String p : entries.keySet())
+			if (new File(p).exists())
+				paths.add(p);
+		Collections.sort(paths);
+		ArrayList<String> dests = new ArrayList<String>();
+		for (String p : outputs.keySet())
+			if (new File(p).exists())
+				dests.add(p);
+		Collections.sort(dests);
+		File tmp = new File(file.getPath() + ".tmp");
+		File dir = tmp.getAbsoluteFile().getParentFile();
+		if (dir != null && !dir.exists())
+			dir.mkdirs();
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(tmp)));
+		try {
+			os.writeInt(MAGIC);
+			os.writeInt(VERSION);
+			os.writeInt(paths.size());
+			for (String p : paths) {
+				Entry e = entries.get(p);
+				os.writeUTF(e.path);
+				os.writeLong(e.size);
+				os.writeLong(e.mtime);
+				writeBytes(os, e.hash);
+				os.writeInt(e.machine);
+				writeString(os, e.soname);
+				os.writeInt(e.needed.size());
+				for (String s : e.needed)
+					os.writeUTF(s);
+				os.writeInt(e.rpath.size());
+				for (String s : e.rpath)
+					os.writeUTF(s);
+				os.writeInt(e.fixups.size());
+				for (Fixup fx : e.fixups) {
+					os.writeLong(fx.start);
+					os.writeLong(fx.end);
+					writeBytes(os, fx.replacement);
+				}
+			}
+			os.writeInt(dests.size());
+			for (String p : dests) {
+				Output o = outputs.get(p);
+				os.writeUTF(p);
+				os.writeLong(o.size);
+				os.writeLong(o.mtime);
+				writeBytes(os, o.digest);
+			}
+		} finally {
+			os.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Unable to write " + file);
+		}
+		dirty = false;
+	}
+
+	public LibraryCache(File f)
+	{
+		file = f;
+		entries = new HashMap<String,Entry>();
+		outputs = new HashMap<String,Output>();
+		dirty = false;
+		if (file.exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				// Unreadable cache, start over.
+				entries.clear();
+				outputs.clear();
+				dirty = true;
+			}
+		}
+	}
+}
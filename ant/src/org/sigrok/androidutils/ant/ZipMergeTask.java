@@ -0,0 +1,59 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils.ant;
+
+import java.io.File;
+import java.io.IOException;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+public class ZipMergeTask extends Task
+{
+	protected File destFile = null;
+	protected File srcFile = null;
+
+	public void setDestfile(File destFile)
+	{
+		this.destFile = destFile;
+	}
+
+	public void setSrc(File srcFile)
+	{
+		this.srcFile = srcFile;
+	}
+
+	public void execute() throws BuildException
+	{
+		if (destFile == null || srcFile == null)
+			throw new BuildException("zipmerge needs both destfile and src");
+		if (!srcFile.exists())
+			throw new BuildException("Could not find archive " + srcFile);
+		try {
+			ZipWriter zip = new ZipWriter(destFile, true);
+			try {
+				zip.copyEntries(srcFile);
+			} finally {
+				zip.close();
+			}
+		} catch (IOException e) {
+			throw new BuildException(e);
+		}
+	}
+}
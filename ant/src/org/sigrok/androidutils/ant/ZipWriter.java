@@ -0,0 +1,328 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils.ant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+
+// A minimal zip writer, just enough to write stored entries at aligned
+// offsets and to append the raw entries of other archives, neither of
+// which the zip support in Ant or the JDK can do.  Zip64 is not
+// supported.
+class ZipWriter
+{
+	private static final int LOCSIG = 0x04034b50;
+	private static final int CENSIG = 0x02014b50;
+	private static final int ENDSIG = 0x06054b50;
+	private static final int LOCHDR = 30;
+	private static final int CENHDR = 46;
+	private static final int ENDHDR = 22;
+
+	// Extra field used by zipalign to pad entries to an alignment.
+	private static final short ALIGNMENT_EXTRA_ID = (short)0xd935;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final ByteArrayOutputStream central;
+	private final HashSet<String> names;
+	private int count;
+	private long entryHeader;
+
+	private static class CentralEntry
+	{
+		public final int offset, nameLen, extraLen, commentLen;
+		public final long localOffset;
+		public final String name;
+
+		public CentralEntry(ByteBuffer cd, int offset) throws IOException
+		{
+			if (cd.getInt(offset) != CENSIG)
+				throw new IOException("Bad central directory entry");
+			this.offset = offset;
+			nameLen = cd.getShort(offset + 28) & 0xffff;
+			extraLen = cd.getShort(offset + 30) & 0xffff;
+			commentLen = cd.getShort(offset + 32) & 0xffff;
+			localOffset = cd.getInt(offset + 42) & 0xffffffffL;
+			byte[] n = new byte[nameLen];
+			for (int i = 0; i < nameLen; i++)
+				n[i] = cd.get(offset + CENHDR + i);
+			name = new String(n, "UTF-8");
+		}
+
+		public int length()
+		{
+			return CENHDR + nameLen + extraLen + commentLen;
+		}
+	}
+
+	private static class Directory
+	{
+		public final long offset;
+		public final ByteBuffer data;
+		public final ArrayList<CentralEntry> entries;
+
+		public Directory(FileChannel ch) throws IOException
+		{
+			long size = ch.size();
+			int tail = (int)Math.min(size, ENDHDR + 0xffff);
+			ByteBuffer end = ByteBuffer.allocate(tail).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(ch, end, size - tail);
+			int pos = tail - ENDHDR;
+			while (pos >= 0 && end.getInt(pos) != ENDSIG)
+				--pos;
+			if (pos < 0)
+				throw new IOException("Not a zip file");
+			int n = end.getShort(pos + 10) & 0xffff;
+			long cdsize = end.getInt(pos + 12) & 0xffffffffL;
+			offset = end.getInt(pos + 16) & 0xffffffffL;
+			if (n == 0xffff || offset == 0xffffffffL ||
+			    offset + cdsize > size)
+				throw new IOException("Unsupported zip file");
+			data = ByteBuffer.allocate((int)cdsize).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(ch, data, offset);
+			entries = new ArrayList<CentralEntry>();
+			int p = 0;
+			for (int i = 0; i < n; i++) {
+				CentralEntry e = new CentralEntry(data, p);
+				entries.add(e);
+				p += e.length();
+			}
+		}
+	}
+
+	private static void readFully(FileChannel ch, ByteBuffer b, long pos)
+		throws IOException
+	{
+		b.clear();
+		while (b.hasRemaining()) {
+			if (ch.read(b, pos + b.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+	}
+
+	private void writeFully(ByteBuffer b) throws IOException
+	{
+		while (b.hasRemaining())
+			channel.write(b);
+	}
+
+	private static int dosTime(long time)
+	{
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980)
+			return (1 << 21) | (1 << 16);
+		return ((year - 1980) << 25) | ((c.get(Calendar.MONTH) + 1) << 21) |
+			(c.get(Calendar.DAY_OF_MONTH) << 16) |
+			(c.get(Calendar.HOUR_OF_DAY) << 11) |
+			(c.get(Calendar.MINUTE) << 5) | (c.get(Calendar.SECOND) >> 1);
+	}
+
+	public FileChannel getChannel()
+	{
+		return channel;
+	}
+
+	// Writes the local header of a stored entry of the given size,
+	// padded so that its data starts at a multiple of align.  The data
+	// is then to be written to the channel, followed by endEntry().
+	public long beginEntry(String name, long time, long size, int align)
+		throws IOException
+	{
+		if (!names.add(name))
+			throw new IOException("Duplicate zip entry " + name);
+		if (size > 0xffffffffL)
+			throw new IOException("Zip entry " + name + " is too large");
+		if (align > 0x8000)
+			throw new IOException("Zip alignment " + align + " is too large");
+		byte[] n = name.getBytes("UTF-8");
+		long pos = channel.position();
+		int extra = 0;
+		if (align > 1) {
+			extra = 6;
+			long data = pos + LOCHDR + n.length + extra;
+			extra += (int)((align - data % align) % align);
+		}
+		ByteBuffer h = ByteBuffer.allocate(LOCHDR + n.length + extra).
+			order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(LOCSIG);
+		h.putShort((short)10);		// version needed
+		h.putShort((short)0x0800);	// flags: UTF-8 names
+		h.putShort((short)0);		// method: stored
+		h.putInt(dosTime(time));
+		h.putInt(0);			// crc, filled in by endEntry()
+		h.putInt((int)size);
+		h.putInt((int)size);
+		h.putShort((short)n.length);
+		h.putShort((short)extra);
+		h.put(n);
+		if (extra > 0) {
+			h.putShort(ALIGNMENT_EXTRA_ID);
+			h.putShort((short)(extra - 4));
+			h.putShort((short)align);
+		}
+		h.clear();
+		writeFully(h);
+		entryHeader = pos;
+		return channel.position();
+	}
+
+	public void endEntry(long crc) throws IOException
+	{
+		ByteBuffer h = ByteBuffer.allocate(LOCHDR).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, h, entryHeader);
+		h.putInt(14, (int)crc);
+		h.clear();
+		while (h.hasRemaining())
+			channel.write(h, entryHeader + h.position());
+		int nameLen = h.getShort(26) & 0xffff;
+		ByteBuffer c = ByteBuffer.allocate(CENHDR + nameLen).
+			order(ByteOrder.LITTLE_ENDIAN);
+		c.putInt(CENSIG);
+		c.putShort((short)20);		// version made by
+		for (int i = 4; i < 26; i++)	// shared with the local header
+			c.put(h.get(i));
+		c.putShort((short)nameLen);
+		c.putShort((short)0);		// extra length
+		c.putShort((short)0);		// comment length
+		c.putShort((short)0);		// disk number
+		c.putShort((short)0);		// internal attributes
+		c.putInt(0);			// external attributes
+		c.putInt((int)entryHeader);
+		ByteBuffer n = ByteBuffer.allocate(nameLen);
+		readFully(channel, n, entryHeader + LOCHDR);
+		c.put(n.array());
+		central.write(c.array(), 0, c.position());
+		count++;
+		channel.position(channel.size());
+	}
+
+	// Appends all entries of another zip file as they are, without
+	// recompressing them.  Directory entries already present are
+	// skipped, other duplicates are an error.
+	public void copyEntries(File f) throws IOException
+	{
+		RandomAccessFile src = new RandomAccessFile(f, "r");
+		try {
+			FileChannel ch = src.getChannel();
+			Directory dir = new Directory(ch);
+			ArrayList<CentralEntry> byOffset =
+				new ArrayList<CentralEntry>(dir.entries);
+			Collections.sort(byOffset, new Comparator<CentralEntry>() {
+				public int compare(CentralEntry a, CentralEntry b)
+				{
+					return (a.localOffset < b.localOffset ? -1 :
+						(a.localOffset > b.localOffset ? 1 : 0));
+				}
+			});
+			int size = byOffset.size();
+			for (int i = 0; i < size; i++) {
+				CentralEntry e = byOffset.get(i);
+				if (!names.add(e.name)) {
+					if (e.name.endsWith("/"))
+						continue;
+					throw new IOException("Duplicate zip entry " + e.name);
+				}
+				long end = (i + 1 < size ?
+					byOffset.get(i + 1).localOffset : dir.offset);
+				long pos = channel.position();
+				if (pos > 0xffffffffL)
+					throw new IOException("Zip file too large");
+				long offs = e.localOffset;
+				while (offs < end) {
+					long n = ch.transferTo(offs, end - offs, channel);
+					if (n <= 0)
+						throw new IOException("Zip file truncated: " + f);
+					offs += n;
+				}
+				ByteBuffer c = ByteBuffer.allocate(e.length()).
+					order(ByteOrder.LITTLE_ENDIAN);
+				for (int j = 0; j < e.length(); j++)
+					c.put(dir.data.get(e.offset + j));
+				c.putInt(42, (int)pos);
+				central.write(c.array(), 0, c.capacity());
+				count++;
+			}
+		} finally {
+			src.close();
+		}
+	}
+
+	public void close() throws IOException
+	{
+		try {
+			long offset = channel.position();
+			if (count > 0xfffe || offset > 0xffffffffL)
+				throw new IOException("Zip file too large");
+			writeFully(ByteBuffer.wrap(central.toByteArray()));
+			ByteBuffer e = ByteBuffer.allocate(ENDHDR).order(ByteOrder.LITTLE_ENDIAN);
+			e.putInt(ENDSIG);
+			e.putShort((short)0);
+			e.putShort((short)0);
+			e.putShort((short)count);
+			e.putShort((short)count);
+			e.putInt(central.size());
+			e.putInt((int)offset);
+			e.putShort((short)0);
+			e.clear();
+			writeFully(e);
+			channel.truncate(channel.position());
+		} finally {
+			file.close();
+		}
+	}
+
+	// Opens a zip file for writing.  With append, the entries already
+	// in the file are kept and new ones are added after them.
+	public ZipWriter(File f, boolean append) throws IOException
+	{
+		central = new ByteArrayOutputStream();
+		names = new HashSet<String>();
+		count = 0;
+		if (!append && f.exists() && !f.delete())
+			throw new IOException("Unable to replace " + f);
+		file = new RandomAccessFile(f, "rw");
+		channel = file.getChannel();
+		try {
+			if (append && channel.size() > 0) {
+				Directory dir = new Directory(channel);
+				for (CentralEntry e : dir.entries)
+					names.add(e.name);
+				central.write(dir.data.array(), 0, dir.data.capacity());
+				count = dir.entries.size();
+				channel.position(dir.offset);
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+}
@@ -17,40 +17,105 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+#include <pthread.h>
+#include <string.h>
+
 #include "libsigrokandroidutils.h"
 #include "libsigrokandroidutils-internal.h"
 
+/*
+ * The environment from Environment.getEncodedEnvironment(), as
+ * "NAME=value" strings each ended by a NUL byte.  Java pushes it through
+ * setNativeEnvironment() when it changes.
+ */
+static pthread_mutex_t g_env_lock = PTHREAD_MUTEX_INITIALIZER;
+static char *g_env_buf = NULL;
+static size_t g_env_len = 0;
+
+static void JNICALL set_native_environment(JNIEnv *env, jclass cls,
+					   jbyteArray buf)
+{
+	(void)cls;
+
+	jsize len = (buf ? env->GetArrayLength(buf) : 0);
+	char *copy = (char *)malloc(len + 1);
+	if (!copy)
+		return;
+	if (len > 0)
+		env->GetByteArrayRegion(buf, 0, len, (jbyte *)copy);
+	copy[len] = '\0';
+
+	pthread_mutex_lock(&g_env_lock);
+	free(g_env_buf);
+	g_env_buf = copy;
+	g_env_len = len;
+	pthread_mutex_unlock(&g_env_lock);
+}
+
+static int init_pushed_environment(void)
+{
+	pthread_mutex_lock(&g_env_lock);
+	if (!g_env_buf) {
+		pthread_mutex_unlock(&g_env_lock);
+		return 0;
+	}
+
+	char *p = g_env_buf, *end = g_env_buf + g_env_len;
+	while (p < end) {
+		size_t n = strlen(p);
+		char *eq = strchr(p, '=');
+		if (eq) {
+			*eq = '\0';
+			setenv(p, eq + 1, 1);
+			*eq = '=';
+		}
+		p += n + 1;
+	}
+	pthread_mutex_unlock(&g_env_lock);
+
+	return 1;
+}
+
+SRAU_PRIV void srau_register_environment_natives(JNIEnv *env,
+	const struct srau_jni_registry *r)
+{
+	static const JNINativeMethod methods[] = {
+		{ (char *)"setNativeEnvironment", (char *)"([B)V",
+		  (void *)set_native_environment },
+	};
+
+	if (r->environment_class &&
+	    env->RegisterNatives(r->environment_class, methods, 1) < 0)
+		env->ExceptionClear();
+}
+
 SRAU_API void srau_init_environment(void)
 {
 	JNIEnv *env;
 
+	if (init_pushed_environment())
+		return;
+
 	int attach_mode = srau_get_java_env(&env);
 
 	if (attach_mode < 0)
 		return;
 
-	jclass envc = srau_get_environment_class(env);
-	if (!envc)
+	const struct srau_jni_registry *r = srau_get_jni_registry();
+	if (!r || !r->environment_get_encoded_environment) {
+		srau_unget_java_env(attach_mode);
 		return;
+	}
 
-	jmethodID getEnv = env->GetStaticMethodID(envc, "getEnvironment",
-						  "()[Ljava/lang/String;");
-	jobjectArray envs =
-		(jobjectArray)env->CallStaticObjectMethod(envc, getEnv);
-	jsize i, envn = env->GetArrayLength(envs);
-	for (i = 0; i < envn; i += 2) {
-		jstring key = (jstring)env->GetObjectArrayElement(envs, i);
-		jstring value = (jstring)env->GetObjectArrayElement(envs, i + 1);
-		const char *utfkey = env->GetStringUTFChars(key, 0);
-		const char *utfvalue = env->GetStringUTFChars(value, 0);
-		setenv(utfkey, utfvalue, 1);
-		env->ReleaseStringUTFChars(value, utfvalue);
-		env->ReleaseStringUTFChars(key, utfkey);
-		env->DeleteLocalRef(value);
-		env->DeleteLocalRef(key);
+	/* Nothing pushed yet, so fetch the buffer and keep it. */
+	jbyteArray buf = (jbyteArray)env->CallStaticObjectMethod(
+		r->environment_class, r->environment_get_encoded_environment);
+	if (buf) {
+		set_native_environment(env, 0, buf);
+		env->DeleteLocalRef(buf);
 	}
-	env->DeleteLocalRef(envs);
-	env->DeleteLocalRef(envc);
 
 	srau_unget_java_env(attach_mode);
+
+	init_pushed_environment();
 }
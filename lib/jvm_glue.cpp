@@ -17,11 +17,30 @@
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+#include <pthread.h>
+#include <string.h>
+
 #include "libsigrokandroidutils.h"
 #include "libsigrokandroidutils-internal.h"
 
 static JavaVM *g_jvm = NULL;
-static jclass g_environment_class = 0;
+static pthread_key_t g_env_key;
+static int g_env_key_valid = 0;
+static unsigned long g_attaches_avoided = 0;
+static struct srau_jni_registry g_registry;
+
+/*
+ * Native threads attached by srau_get_java_env() stay attached, with their
+ * JNIEnv kept in g_env_key, and are detached by this destructor when they
+ * exit.
+ */
+static void detach_thread(void *env)
+{
+	(void)env;
+
+	if (g_jvm)
+		g_jvm->DetachCurrentThread();
+}
 
 SRAU_PRIV int srau_get_java_env(JNIEnv **env)
 {
@@ -30,29 +49,139 @@ SRAU_PRIV int srau_get_java_env(JNIEnv **env)
 	if (g_jvm == NULL)
 		return -1;
 
+	if (g_env_key_valid) {
+		JNIEnv *cached = (JNIEnv *)pthread_getspecific(g_env_key);
+		if (cached) {
+			__sync_fetch_and_add(&g_attaches_avoided, 1);
+			*env = cached;
+			return 0;
+		}
+	}
+
 	st = g_jvm->GetEnv((void **)env, JNI_VERSION_1_6);
 
 	if (st == JNI_EDETACHED) {
 		st = g_jvm->AttachCurrentThread(env, NULL);
-		if (st == JNI_OK)
-			return 1;
+		if (st != JNI_OK)
+			return -1;
+		if (g_env_key_valid &&
+		    pthread_setspecific(g_env_key, *env) == 0)
+			return 0;
+		return 1;
 	}
 
 	return (st == JNI_OK? 0 : -1);
 }
 
+SRAU_API unsigned long srau_get_attaches_avoided(void)
+{
+	return __sync_fetch_and_add(&g_attaches_avoided, 0);
+}
+
 SRAU_PRIV void srau_unget_java_env(int mode)
 {
 	if (mode == 1)
 		g_jvm->DetachCurrentThread();
 }
 
-SRAU_PRIV jclass srau_get_environment_class(JNIEnv *env)
+SRAU_PRIV const struct srau_jni_registry *srau_get_jni_registry(void)
+{
+	return (g_jvm ? &g_registry : NULL);
+}
+
+static jclass find_class(JNIEnv *env, const char *name)
 {
-	if (env && g_environment_class)
-		return (jclass)env->NewLocalRef(g_environment_class);
-	else
+	jclass local = env->FindClass(name);
+	if (!local) {
+		env->ExceptionClear();
 		return 0;
+	}
+
+	jclass global = (jclass)env->NewGlobalRef(local);
+	env->DeleteLocalRef(local);
+
+	return global;
+}
+
+static jmethodID find_static_method(JNIEnv *env, jclass c,
+				    const char *name, const char *sig)
+{
+	if (!c)
+		return 0;
+
+	jmethodID m = env->GetStaticMethodID(c, name, sig);
+	if (!m)
+		env->ExceptionClear();
+
+	return m;
+}
+
+static jmethodID find_method(JNIEnv *env, jclass c,
+			     const char *name, const char *sig)
+{
+	if (!c)
+		return 0;
+
+	jmethodID m = env->GetMethodID(c, name, sig);
+	if (!m)
+		env->ExceptionClear();
+
+	return m;
+}
+
+/*
+ * Looks up everything native code calls in Java once, with the class
+ * loader of the application, which threads attached later can't reach.
+ */
+static void init_registry(JNIEnv *env)
+{
+	struct srau_jni_registry *r = &g_registry;
+
+	r->environment_class = find_class(env,
+		"org/sigrok/androidutils/Environment");
+	r->environment_get_encoded_environment = find_static_method(env,
+		r->environment_class, "getEncodedEnvironment", "()[B");
+
+	r->usb_helper_class = find_class(env,
+		"org/sigrok/androidutils/UsbHelper");
+	r->usb_helper_open = find_static_method(env, r->usb_helper_class,
+		"open", "(Ljava/lang/String;I)I");
+	r->usb_helper_scan_devices = find_static_method(env,
+		r->usb_helper_class, "scanDevices", "()[Ljava/lang/String;");
+	r->usb_helper_start_event_monitor = find_static_method(env,
+		r->usb_helper_class, "startEventMonitor",
+		"(Lorg/sigrok/androidutils/UsbEventListener;)V");
+	r->usb_helper_stop_event_monitor = find_static_method(env,
+		r->usb_helper_class, "stopEventMonitor", "()V");
+	r->usb_helper_start_native_cache = find_static_method(env,
+		r->usb_helper_class, "startNativeCache", "()Z");
+
+	r->usb_event_callback_stub_class = find_class(env,
+		"org/sigrok/androidutils/UsbEventCallbackStub");
+	r->usb_event_callback_stub_init = find_method(env,
+		r->usb_event_callback_stub_class, "<init>", "()V");
+
+	r->usb_device_cache_stub_class = find_class(env,
+		"org/sigrok/androidutils/UsbDeviceCacheStub");
+}
+
+static void release_registry(JNIEnv *env)
+{
+	struct srau_jni_registry *r = &g_registry;
+
+	jclass classes[] = {
+		r->environment_class,
+		r->usb_helper_class,
+		r->usb_event_callback_stub_class,
+		r->usb_device_cache_stub_class,
+	};
+	size_t i;
+
+	for (i = 0; i < sizeof(classes) / sizeof(classes[0]); i++)
+		if (classes[i])
+			env->DeleteGlobalRef(classes[i]);
+
+	memset(r, 0, sizeof(*r));
 }
 
 jint JNI_OnLoad(JavaVM *vm, void *reserved)
@@ -64,11 +193,12 @@ jint JNI_OnLoad(JavaVM *vm, void *reserved)
 	if (vm->GetEnv((void **)&env, JNI_VERSION_1_6) != JNI_OK)
 		return -1;
 
-	jclass envc = env->FindClass("org/sigrok/androidutils/Environment");
-	if (envc) {
-		g_environment_class = (jclass)env->NewGlobalRef(envc);
-		env->DeleteLocalRef(envc);
-	}
+	if (!g_env_key_valid)
+		g_env_key_valid = (pthread_key_create(&g_env_key, detach_thread) == 0);
+
+	init_registry(env);
+	srau_register_usb_natives(env, &g_registry);
+	srau_register_environment_natives(env, &g_registry);
 
 	g_jvm = vm;
 
@@ -86,8 +216,5 @@ void JNI_OnUnload(JavaVM *vm, void *reserved)
 	if (vm->GetEnv((void **)&env, JNI_VERSION_1_6) != JNI_OK)
 		return;
 
-	if (g_environment_class) {
-		env->DeleteGlobalRef(g_environment_class);
-		g_environment_class = 0;
-	}
+	release_registry(env);
 }
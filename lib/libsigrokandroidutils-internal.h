@@ -29,7 +29,34 @@ extern "C" {
 
 SRAU_PRIV int srau_get_java_env(JNIEnv **env);
 SRAU_PRIV void srau_unget_java_env(int mode);
-SRAU_PRIV jclass srau_get_environment_class(JNIEnv *env);
+
+/*
+ * Classes and methods used from native code, looked up once when the
+ * library is loaded.  Class references are global.  Anything not found
+ * is 0.
+ */
+struct srau_jni_registry {
+	jclass environment_class;
+	jmethodID environment_get_encoded_environment;
+
+	jclass usb_helper_class;
+	jmethodID usb_helper_open;
+	jmethodID usb_helper_scan_devices;
+	jmethodID usb_helper_start_event_monitor;
+	jmethodID usb_helper_stop_event_monitor;
+	jmethodID usb_helper_start_native_cache;
+
+	jclass usb_event_callback_stub_class;
+	jmethodID usb_event_callback_stub_init;
+
+	jclass usb_device_cache_stub_class;
+};
+
+SRAU_PRIV const struct srau_jni_registry *srau_get_jni_registry(void);
+SRAU_PRIV void srau_register_usb_natives(JNIEnv *env,
+					 const struct srau_jni_registry *r);
+SRAU_PRIV void srau_register_environment_natives(JNIEnv *env,
+						const struct srau_jni_registry *r);
 
 #ifdef __cplusplus
 }
@@ -45,6 +45,19 @@ extern "C" {
 #define SRAU_PRIV __attribute__((visibility("hidden")))
 
 SRAU_API void srau_init_environment(void);
+SRAU_API unsigned long srau_get_attaches_avoided(void);
+
+SRAU_API char **srau_usb_scan(void);
+SRAU_API void srau_usb_free_list(char **list);
+SRAU_API int srau_usb_open(const char *name, int mode);
+SRAU_API void srau_usb_close(int fd);
+
+typedef void (*srau_usb_event_callback)(const char *name, int removed,
+					void *data);
+
+SRAU_API int srau_usb_start_event_monitor(srau_usb_event_callback cb,
+					  void *data);
+SRAU_API void srau_usb_stop_event_monitor(void);
 
 #ifdef __cplusplus
 }
@@ -0,0 +1,471 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#include <pthread.h>
+#include <string.h>
+#include <unistd.h>
+
+#include "libsigrokandroidutils.h"
+#include "libsigrokandroidutils-internal.h"
+
+/*
+ * A cache of the attached USB devices and of their file descriptors,
+ * kept up to date by UsbDeviceCacheStub while an event monitor runs, so
+ * that scanning and reopening devices needs no calls into Java.
+ *
+ * Each cached descriptor is a copy of UsbHelper's pooled one, owned
+ * here and closed when the device goes away and nothing here uses it
+ * any more.
+ */
+
+struct usb_device_entry {
+	char *name;
+	int fd;
+	int refs;
+	int gone;
+};
+
+static pthread_mutex_t g_usb_lock = PTHREAD_MUTEX_INITIALIZER;
+static struct usb_device_entry *g_usb_devices = NULL;
+static int g_usb_count = 0;
+static int g_usb_size = 0;
+static int g_usb_valid = 0;
+
+static int find_by_name(const char *name)
+{
+	int i;
+
+	for (i = 0; i < g_usb_count; i++)
+		if (!g_usb_devices[i].gone && !strcmp(g_usb_devices[i].name, name))
+			return i;
+
+	return -1;
+}
+
+static int find_by_fd(int fd)
+{
+	int i;
+
+	for (i = 0; i < g_usb_count; i++)
+		if (g_usb_devices[i].fd == fd)
+			return i;
+
+	return -1;
+}
+
+static int add_entry(const char *name)
+{
+	if (g_usb_count == g_usb_size) {
+		int size = (g_usb_size ? 2 * g_usb_size : 8);
+		struct usb_device_entry *d = (struct usb_device_entry *)
+			realloc(g_usb_devices, size * sizeof(*d));
+		if (!d)
+			return -1;
+		g_usb_devices = d;
+		g_usb_size = size;
+	}
+
+	char *copy = strdup(name);
+	if (!copy)
+		return -1;
+
+	struct usb_device_entry *e = &g_usb_devices[g_usb_count];
+	e->name = copy;
+	e->fd = -1;
+	e->refs = 0;
+	e->gone = 0;
+
+	return g_usb_count++;
+}
+
+/*
+ * Drops entry i, unless its descriptor is still in use.  Returns the
+ * descriptor to release, or -1.
+ */
+static int remove_entry(int i)
+{
+	struct usb_device_entry *e = &g_usb_devices[i];
+
+	if (e->refs > 0) {
+		e->gone = 1;
+		return -1;
+	}
+
+	int fd = e->fd;
+	free(e->name);
+	*e = g_usb_devices[--g_usb_count];
+
+	return fd;
+}
+
+static void release_fds(int *fds, int n)
+{
+	int i;
+
+	for (i = 0; i < n; i++)
+		close(fds[i]);
+	free(fds);
+}
+
+/* Asks UsbHelper to keep the cache up to date. */
+static int start_cache(JNIEnv *env)
+{
+	const struct srau_jni_registry *r = srau_get_jni_registry();
+
+	if (!r || !r->usb_helper_start_native_cache)
+		return 0;
+
+	return (env->CallStaticBooleanMethod(r->usb_helper_class,
+		r->usb_helper_start_native_cache) == JNI_TRUE);
+}
+
+static char **copy_names(void)
+{
+	int i, n = 0;
+
+	char **list = (char **)malloc((g_usb_count + 1) * sizeof(char *));
+	if (!list)
+		return NULL;
+
+	for (i = 0; i < g_usb_count; i++) {
+		if (g_usb_devices[i].gone)
+			continue;
+		if (!(list[n] = strdup(g_usb_devices[i].name))) {
+			list[n] = NULL;
+			srau_usb_free_list(list);
+			return NULL;
+		}
+		n++;
+	}
+	list[n] = NULL;
+
+	return list;
+}
+
+static char **scan_java(JNIEnv *env)
+{
+	const struct srau_jni_registry *r = srau_get_jni_registry();
+	if (!r || !r->usb_helper_scan_devices)
+		return NULL;
+
+	char **list = NULL;
+	jobjectArray names = (jobjectArray)env->CallStaticObjectMethod(
+		r->usb_helper_class, r->usb_helper_scan_devices);
+	if (names) {
+		jsize i, n = env->GetArrayLength(names);
+		list = (char **)calloc(n + 1, sizeof(char *));
+		for (i = 0; list && i < n; i++) {
+			jstring name = (jstring)env->GetObjectArrayElement(names, i);
+			const char *utfname = env->GetStringUTFChars(name, 0);
+			list[i] = strdup(utfname);
+			env->ReleaseStringUTFChars(name, utfname);
+			env->DeleteLocalRef(name);
+			if (!list[i]) {
+				srau_usb_free_list(list);
+				list = NULL;
+			}
+		}
+		env->DeleteLocalRef(names);
+	}
+
+	return list;
+}
+
+SRAU_API char **srau_usb_scan(void)
+{
+	char **list = NULL;
+
+	pthread_mutex_lock(&g_usb_lock);
+	if (g_usb_valid)
+		list = copy_names();
+	pthread_mutex_unlock(&g_usb_lock);
+
+	if (list)
+		return list;
+
+	JNIEnv *env;
+
+	int attach_mode = srau_get_java_env(&env);
+
+	if (attach_mode < 0)
+		return NULL;
+
+	if (start_cache(env)) {
+		pthread_mutex_lock(&g_usb_lock);
+		if (g_usb_valid)
+			list = copy_names();
+		pthread_mutex_unlock(&g_usb_lock);
+	}
+	if (!list)
+		list = scan_java(env);
+
+	srau_unget_java_env(attach_mode);
+
+	return list;
+}
+
+SRAU_API void srau_usb_free_list(char **list)
+{
+	char **p;
+
+	if (!list)
+		return;
+
+	for (p = list; *p; p++)
+		free(*p);
+	free(list);
+}
+
+SRAU_API int srau_usb_open(const char *name, int mode)
+{
+	int i, fd = -1;
+
+	pthread_mutex_lock(&g_usb_lock);
+	if ((i = find_by_name(name)) >= 0 && g_usb_devices[i].fd >= 0) {
+		g_usb_devices[i].refs++;
+		fd = g_usb_devices[i].fd;
+	}
+	pthread_mutex_unlock(&g_usb_lock);
+
+	if (fd >= 0)
+		return fd;
+
+	JNIEnv *env;
+
+	int attach_mode = srau_get_java_env(&env);
+
+	if (attach_mode < 0)
+		return -1;
+
+	const struct srau_jni_registry *r = srau_get_jni_registry();
+	if (r && r->usb_helper_open) {
+		jstring jname = env->NewStringUTF(name);
+		if (jname) {
+			fd = env->CallStaticIntMethod(r->usb_helper_class,
+				r->usb_helper_open, jname, (jint)mode);
+			env->DeleteLocalRef(jname);
+		}
+	}
+
+	if (fd >= 0) {
+		int extra = -1;
+		pthread_mutex_lock(&g_usb_lock);
+		if ((i = find_by_name(name)) >= 0) {
+			struct usb_device_entry *e = &g_usb_devices[i];
+			if (e->fd < 0) {
+				e->fd = fd;
+			} else {
+				/* Opened concurrently, keep the first one. */
+				extra = fd;
+				fd = e->fd;
+			}
+			e->refs++;
+		}
+		pthread_mutex_unlock(&g_usb_lock);
+		if (extra >= 0)
+			close(extra);
+	}
+
+	srau_unget_java_env(attach_mode);
+
+	return fd;
+}
+
+SRAU_API void srau_usb_close(int fd)
+{
+	int i, release = fd;
+
+	if (fd < 0)
+		return;
+
+	pthread_mutex_lock(&g_usb_lock);
+	if ((i = find_by_fd(fd)) >= 0) {
+		struct usb_device_entry *e = &g_usb_devices[i];
+		release = -1;
+		if (e->refs > 0 && --e->refs == 0 && e->gone)
+			release = remove_entry(i);
+	}
+	pthread_mutex_unlock(&g_usb_lock);
+
+	/* Descriptors not in the cache are closed right away. */
+	if (release >= 0)
+		close(release);
+}
+
+static void JNICALL cache_on_usb_device_action(JNIEnv *env,
+	jobject obj, jstring name, jboolean removed)
+{
+	int i, release = -1;
+
+	(void)obj;
+
+	const char *utfname = env->GetStringUTFChars(name, 0);
+	if (!utfname)
+		return;
+
+	pthread_mutex_lock(&g_usb_lock);
+	i = find_by_name(utfname);
+	if (removed) {
+		if (i >= 0)
+			release = remove_entry(i);
+	} else if (i < 0) {
+		add_entry(utfname);
+	}
+	pthread_mutex_unlock(&g_usb_lock);
+
+	env->ReleaseStringUTFChars(name, utfname);
+
+	if (release >= 0)
+		close(release);
+}
+
+static void JNICALL cache_on_reset(JNIEnv *env,
+	jobject obj, jboolean valid)
+{
+	int i, n = 0;
+
+	(void)obj;
+
+	pthread_mutex_lock(&g_usb_lock);
+	int *fds = (int *)malloc((g_usb_count + 1) * sizeof(int));
+	for (i = g_usb_count - 1; i >= 0; --i) {
+		if (g_usb_devices[i].gone)
+			continue;
+		int fd = remove_entry(i);
+		if (fd >= 0 && fds)
+			fds[n++] = fd;
+	}
+	g_usb_valid = (valid == JNI_TRUE);
+	pthread_mutex_unlock(&g_usb_lock);
+
+	if (fds)
+		release_fds(fds, n);
+}
+
+static srau_usb_event_callback g_event_callback = NULL;
+static void *g_event_data = NULL;
+
+static void JNICALL callback_on_usb_device_action(JNIEnv *env,
+	jobject obj, jstring name, jboolean removed)
+{
+	(void)obj;
+
+	pthread_mutex_lock(&g_usb_lock);
+	srau_usb_event_callback cb = g_event_callback;
+	void *data = g_event_data;
+	pthread_mutex_unlock(&g_usb_lock);
+
+	if (!cb)
+		return;
+
+	const char *utfname = env->GetStringUTFChars(name, 0);
+	if (!utfname)
+		return;
+
+	cb(utfname, removed == JNI_TRUE, data);
+
+	env->ReleaseStringUTFChars(name, utfname);
+}
+
+/*
+ * Starts UsbHelper's event monitor, with events passed to cb, replacing
+ * any monitor already running.
+ */
+SRAU_API int srau_usb_start_event_monitor(srau_usb_event_callback cb, void *data)
+{
+	JNIEnv *env;
+
+	const struct srau_jni_registry *r = srau_get_jni_registry();
+	if (!r || !r->usb_helper_start_event_monitor ||
+	    !r->usb_event_callback_stub_init)
+		return -1;
+
+	int attach_mode = srau_get_java_env(&env);
+
+	if (attach_mode < 0)
+		return -1;
+
+	pthread_mutex_lock(&g_usb_lock);
+	g_event_callback = cb;
+	g_event_data = data;
+	pthread_mutex_unlock(&g_usb_lock);
+
+	int ret = -1;
+	jobject listener = env->NewObject(r->usb_event_callback_stub_class,
+					  r->usb_event_callback_stub_init);
+	if (listener) {
+		env->CallStaticVoidMethod(r->usb_helper_class,
+			r->usb_helper_start_event_monitor, listener);
+		env->DeleteLocalRef(listener);
+		ret = 0;
+	}
+
+	srau_unget_java_env(attach_mode);
+
+	return ret;
+}
+
+SRAU_API void srau_usb_stop_event_monitor(void)
+{
+	JNIEnv *env;
+
+	const struct srau_jni_registry *r = srau_get_jni_registry();
+	if (!r || !r->usb_helper_stop_event_monitor)
+		return;
+
+	int attach_mode = srau_get_java_env(&env);
+
+	if (attach_mode < 0)
+		return;
+
+	env->CallStaticVoidMethod(r->usb_helper_class,
+				  r->usb_helper_stop_event_monitor);
+
+	pthread_mutex_lock(&g_usb_lock);
+	g_event_callback = NULL;
+	g_event_data = NULL;
+	pthread_mutex_unlock(&g_usb_lock);
+
+	srau_unget_java_env(attach_mode);
+}
+
+SRAU_PRIV void srau_register_usb_natives(JNIEnv *env,
+					 const struct srau_jni_registry *r)
+{
+	static const JNINativeMethod cache_methods[] = {
+		{ (char *)"onUsbDeviceAction", (char *)"(Ljava/lang/String;Z)V",
+		  (void *)cache_on_usb_device_action },
+		{ (char *)"onReset", (char *)"(Z)V",
+		  (void *)cache_on_reset },
+	};
+	static const JNINativeMethod callback_methods[] = {
+		{ (char *)"onUsbDeviceAction", (char *)"(Ljava/lang/String;Z)V",
+		  (void *)callback_on_usb_device_action },
+	};
+
+	if (r->usb_device_cache_stub_class &&
+	    env->RegisterNatives(r->usb_device_cache_stub_class,
+				 cache_methods, 2) < 0)
+		env->ExceptionClear();
+
+	if (r->usb_event_callback_stub_class &&
+	    env->RegisterNatives(r->usb_event_callback_stub_class,
+				 callback_methods, 1) < 0)
+		env->ExceptionClear();
+}
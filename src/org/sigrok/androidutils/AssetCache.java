@@ -0,0 +1,174 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Keeps the Python standard library and the protocol decoders extracted
+// from the APK, so that imports and decoder loads read plain files, and
+// Python can write its .pyc files next to them, instead of going
+// through the compressed APK every time.  The extracted files are
+// replaced whenever the APK changes.
+final class AssetCache
+{
+	private static final int FORMAT = 1;
+	private static final String DIR_NAME = "sigrok_assets";
+	private static final String VERSION_FILE = ".version";
+
+	static final String PYTHON_DIR = "python3.3";
+	static final String DECODERS_DIR = "libsigrokdecode/decoders";
+
+	private static final String[] EXTRACT = {
+		"assets/" + PYTHON_DIR + "/",
+		"assets/" + DECODERS_DIR + "/",
+	};
+
+	private static String getVersion(File apk)
+	{
+		return FORMAT + ":" + apk.length() + ":" + apk.lastModified();
+	}
+
+	private static String readVersion(File dir)
+	{
+		File f = new File(dir, VERSION_FILE);
+		if (!f.exists())
+			return null;
+		try {
+			BufferedReader r = new BufferedReader(new FileReader(f));
+			try {
+				return r.readLine();
+			} finally {
+				r.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static void deleteTree(File f)
+	{
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File child : children)
+				deleteTree(child);
+		f.delete();
+	}
+
+	private static File getDir(Context context)
+	{
+		return new File(context.getDir(DIR_NAME, Context.MODE_PRIVATE), "current");
+	}
+
+	// Returns the extracted assets if they are up to date, else null.
+	static File getIfCurrent(Context context, String apkFile)
+	{
+		File dir = getDir(context);
+		String version = getVersion(new File(apkFile));
+		return (version.equals(readVersion(dir)) ? dir : null);
+	}
+
+	private static void extract(ZipFile zip, ZipEntry entry, File dest)
+		throws IOException
+	{
+		File parent = dest.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Unable to create " + parent);
+		InputStream is = zip.getInputStream(entry);
+		try {
+			OutputStream os = new FileOutputStream(dest);
+			try {
+				byte[] buf = new byte[65536];
+				int n;
+				while ((n = is.read(buf)) > 0)
+					os.write(buf, 0, n);
+			} finally {
+				os.close();
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	// Extracts the assets unless they are up to date already, and
+	// returns where they are, or null if that failed.  The version file
+	// is written last, so an interrupted extraction is redone.
+	static synchronized File prepare(Context context, String apkFile)
+	{
+		File dir = getIfCurrent(context, apkFile);
+		if (dir != null)
+			return dir;
+		dir = getDir(context);
+		File apk = new File(apkFile);
+		String version = getVersion(apk);
+		long start = System.currentTimeMillis();
+		try {
+			deleteTree(dir);
+			int count = 0;
+			ZipFile zip = new ZipFile(apk);
+			try {
+				Enumeration<? extends ZipEntry> entries = zip.entries();
+				while (entries.hasMoreElements()) {
+					ZipEntry e = entries.nextElement();
+					String name = e.getName();
+					if (e.isDirectory() || name.indexOf("..") >= 0)
+						continue;
+					for (String prefix : EXTRACT) {
+						if (name.startsWith(prefix)) {
+							extract(zip, e, new File(dir,
+								name.substring("assets/".length())));
+							count++;
+							break;
+						}
+					}
+				}
+			} finally {
+				zip.close();
+			}
+			if (count == 0)
+				return null;
+			FileWriter w = new FileWriter(new File(dir, VERSION_FILE));
+			try {
+				w.write(version);
+				w.write('\n');
+			} finally {
+				w.close();
+			}
+			Log.i("AssetCache", "extracted " + count + " files in " +
+			      (System.currentTimeMillis() - start) + " ms");
+			return dir;
+		} catch (IOException e) {
+			Log.w("AssetCache", "caught exception " + e);
+			deleteTree(dir);
+			return null;
+		}
+	}
+}
@@ -19,22 +19,152 @@
 
 package org.sigrok.androidutils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public final class Environment
 {
-	static private String[] environment;
+	static private String[] defaults;
+	static private final LinkedHashMap<String,String> extras =
+		new LinkedHashMap<String,String>();
+	static private volatile String[] environment;
+	static private volatile byte[] encoded = new byte[0];
 
 	public static String[] getEnvironment()
 	{
 		return environment;
 	}
 
+	// The environment as "NAME=value" strings in UTF-8, each ended by a
+	// NUL byte.
+	public static byte[] getEncodedEnvironment()
+	{
+		return encoded.clone();
+	}
+
+	// Registered by libsigrokandroidutils when it is loaded.
+	private static native void setNativeEnvironment(byte[] env);
+
+	// Hands the environment to libsigrokandroidutils, so that
+	// srau_init_environment() needn't call back into Java for it.
+	static boolean pushToNative()
+	{
+		try {
+			setNativeEnvironment(encoded);
+			return true;
+		} catch (UnsatisfiedLinkError e) {
+			return false;
+		}
+	}
+
+	// Variables set here override the defaults, and come after them.
+	private static synchronized void update()
+	{
+		ArrayList<String> env = new ArrayList<String>();
+		HashSet<String> overridden = new HashSet<String>();
+		if (defaults != null) {
+			for (int i = 0; i + 1 < defaults.length; i += 2) {
+				String value = extras.get(defaults[i]);
+				if (value != null)
+					overridden.add(defaults[i]);
+				env.add(defaults[i]);
+				env.add(value != null ? value : defaults[i + 1]);
+			}
+		}
+		for (Map.Entry<String,String> e : extras.entrySet()) {
+			if (overridden.contains(e.getKey()))
+				continue;
+			env.add(e.getKey());
+			env.add(e.getValue());
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		Charset utf8 = Charset.forName("UTF-8");
+		for (int i = 0; i < env.size(); i += 2) {
+			byte[] entry = (env.get(i) + "=" + env.get(i + 1)).getBytes(utf8);
+			buf.write(entry, 0, entry.length);
+			buf.write(0);
+		}
+		encoded = buf.toByteArray();
+		environment = env.toArray(new String[env.size()]);
+	}
+
+	private static void changed()
+	{
+		update();
+		if (JniLibraries.isLoaded(JniLibraries.UTILS_LIB))
+			pushToNative();
+	}
+
+	private static void check(String name, String value)
+	{
+		if (name == null || name.length() == 0 ||
+		    name.indexOf('=') >= 0 || name.indexOf('\0') >= 0 ||
+		    (value != null && value.indexOf('\0') >= 0))
+			throw new IllegalArgumentException("Bad environment variable " + name);
+	}
+
+	// Sets a variable for srau_init_environment(), overriding any
+	// default.  A null value removes a variable set before.
+	public static void setVariable(String name, String value)
+	{
+		check(name, value);
+		synchronized (Environment.class) {
+			if (value == null)
+				extras.remove(name);
+			else
+				extras.put(name, value);
+		}
+		changed();
+	}
+
+	// Sets variables given as "NAME=value" strings.  If any entry is
+	// bad, none of them is set.
+	public static void setVariables(String[] entries)
+	{
+		if (entries == null)
+			return;
+		String[] names = new String[entries.length];
+		String[] values = new String[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			String entry = entries[i];
+			int eq = (entry == null ? -1 : entry.indexOf('='));
+			if (eq <= 0)
+				throw new IllegalArgumentException("Bad environment entry " + entry);
+			names[i] = entry.substring(0, eq);
+			values[i] = entry.substring(eq + 1);
+			check(names[i], values[i]);
+		}
+		synchronized (Environment.class) {
+			for (int i = 0; i < names.length; i++)
+				extras.put(names[i], values[i]);
+		}
+		changed();
+	}
+
 	public static void initEnvironment(String apkFile)
 	{
-		environment = new String[]
-		{
-			"PYTHONHOME", ".",
-			"PYTHONPATH", apkFile + "/assets/python3.3",
-			"SIGROKDECODE_DIR", apkFile + "/assets/libsigrokdecode/decoders",
-		};
+		initEnvironment(apkFile, null);
+	}
+
+	// With assetDir, the Python library and the decoders are taken from
+	// there rather than from inside the APK.
+	public static void initEnvironment(String apkFile, File assetDir)
+	{
+		String assets = (assetDir != null ? assetDir.getPath() :
+				 apkFile + "/assets");
+		synchronized (Environment.class) {
+			defaults = new String[]
+			{
+				"PYTHONHOME", ".",
+				"PYTHONPATH", assets + "/" + AssetCache.PYTHON_DIR,
+				"SIGROKDECODE_DIR", assets + "/" + AssetCache.DECODERS_DIR,
+			};
+		}
+		changed();
 	}
 }
@@ -0,0 +1,195 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Initialization in stages.  Setting up the environment with the default
+// paths and giving UsbHelper its context run on the calling thread.  Then
+// reading the meta-data and loading the libraries, extracting the assets,
+// and listing the attached devices run in the background, the last two
+// concurrently with the others.  Native code only takes the environment
+// over when it calls srau_init_environment(), so the libraries may be
+// loaded before the assets are ready; anything that calls it must wait
+// with awaitReady() first, to get the extracted asset paths.
+public final class InitPipeline
+{
+	public static final String STAGE_ENVIRONMENT = "environment";
+	public static final String STAGE_USB = "usb";
+	public static final String STAGE_METADATA = "metadata";
+	public static final String STAGE_ASSETS = "assets";
+	public static final String STAGE_LIBRARIES = "libraries";
+	public static final String STAGE_DEVICES = "devices";
+
+	private final Context context;
+	private final String apkFile;
+	private final CountDownLatch ready = new CountDownLatch(1);
+	private final LinkedHashMap<String,Long> timings =
+		new LinkedHashMap<String,Long>();
+	private volatile Throwable failure;
+	private volatile String[] devices;
+
+	InitPipeline(Context context)
+	{
+		this.context = context;
+		apkFile = context.getApplicationInfo().sourceDir;
+	}
+
+	private void finished(String stage, long start)
+	{
+		long ms = (System.nanoTime() - start) / 1000000;
+		synchronized (timings) {
+			timings.put(stage, Long.valueOf(ms));
+		}
+	}
+
+	void start()
+	{
+		long t = System.nanoTime();
+		Environment.initEnvironment(apkFile);
+		finished(STAGE_ENVIRONMENT, t);
+		t = System.nanoTime();
+		UsbHelper.setContext(context);
+		finished(STAGE_USB, t);
+		Thread worker = new Thread("SigrokInit") {
+			@Override
+			public void run() {
+				runBackground();
+			}
+		};
+		worker.start();
+	}
+
+	// The first failure wins, but every stage is waited for before
+	// the pipeline counts as ready.
+	private void await(Future<Void> stage)
+	{
+		try {
+			stage.get();
+		} catch (ExecutionException e) {
+			if (failure == null)
+				failure = e.getCause();
+		} catch (InterruptedException e) {
+			if (failure == null)
+				failure = e;
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runBackground()
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		Future<Void> assets = pool.submit(new Callable<Void>() {
+			public Void call()
+			{
+				long t = System.nanoTime();
+				File dir = AssetCache.prepare(context, apkFile);
+				if (dir != null)
+					Environment.initEnvironment(apkFile, dir);
+				finished(STAGE_ASSETS, t);
+				return null;
+			}
+		});
+		Future<Void> scan = pool.submit(new Callable<Void>() {
+			public Void call()
+			{
+				long t = System.nanoTime();
+				devices = UsbHelper.scanDevices();
+				finished(STAGE_DEVICES, t);
+				return null;
+			}
+		});
+		pool.shutdown();
+		try {
+			long t = System.nanoTime();
+			ApplicationInfo appInfo = SigrokApplication.getApplicationInfo(context);
+			SigrokApplication.initExtraEnvironment(context, appInfo);
+			SigrokApplication.initJniLibDeps(context, appInfo);
+			String[] libs = SigrokApplication.getJniLibs(context, appInfo);
+			int[] levels = SigrokApplication.getJniLibLevels(context,
+				appInfo, libs.length);
+			finished(STAGE_METADATA, t);
+			t = System.nanoTime();
+			SigrokApplication.loadLibraryLevels(libs, levels);
+			finished(STAGE_LIBRARIES, t);
+		} catch (Throwable e) {
+			failure = e;
+		} finally {
+			await(assets);
+			await(scan);
+			if (failure != null)
+				Log.e("InitPipeline", "initialization failed: " + failure);
+			ready.countDown();
+		}
+	}
+
+	// Whether all stages are done, successfully or not.
+	public boolean isReady()
+	{
+		return ready.getCount() == 0;
+	}
+
+	// Waits for all stages, and throws if one of them failed.
+	public void awaitReady() throws InterruptedException, ExecutionException
+	{
+		ready.await();
+		if (failure != null)
+			throw new ExecutionException(failure);
+	}
+
+	// Like awaitReady(), but returns false on timeout.
+	public boolean awaitReady(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException
+	{
+		if (!ready.await(timeout, unit))
+			return false;
+		if (failure != null)
+			throw new ExecutionException(failure);
+		return true;
+	}
+
+	// Milliseconds taken by each stage finished so far, in the order
+	// they finished.
+	public Map<String,Long> getStageTimes()
+	{
+		synchronized (timings) {
+			return new LinkedHashMap<String,Long>(timings);
+		}
+	}
+
+	// The devices attached when initialization ran, or null if they
+	// could not be listed.
+	public String[] getDevices()
+	{
+		return devices;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+// Loads bundled libraries on demand, each one after the bundled libraries
+// it depends on, using the dependency list written by copylibs.
+public final class JniLibraries
+{
+	static final String UTILS_LIB = "sigrokandroidutils";
+
+	private static final HashMap<String,String[]> dependencies =
+		new HashMap<String,String[]>();
+	private static final HashSet<String> loaded = new HashSet<String>();
+	private static final HashSet<String> loading = new HashSet<String>();
+
+	// Each entry is a library name followed by the names of the
+	// libraries it needs, separated by spaces.
+	static synchronized void setDependencies(String[] deps)
+	{
+		dependencies.clear();
+		if (deps == null)
+			return;
+		for (String dep : deps) {
+			String[] names = dep.trim().split(" +");
+			if (names.length == 0 || names[0].length() == 0)
+				continue;
+			String[] needed = new String[names.length - 1];
+			System.arraycopy(names, 1, needed, 0, needed.length);
+			dependencies.put(names[0], needed);
+		}
+	}
+
+	static synchronized void markLoaded(String libName)
+	{
+		loaded.add(libName);
+		if (UTILS_LIB.equals(libName))
+			Environment.pushToNative();
+	}
+
+	public static synchronized boolean isLoaded(String libName)
+	{
+		return loaded.contains(libName);
+	}
+
+	// Loads libName, and before it everything it depends on, unless
+	// already done.  Libraries unknown to the dependency list are just
+	// loaded.
+	public static synchronized void load(String libName)
+	{
+		if (loaded.contains(libName))
+			return;
+		if (!loading.add(libName))
+			throw new UnsatisfiedLinkError("Circular dependency on " + libName);
+		try {
+			String[] needed = dependencies.get(libName);
+			if (needed != null) {
+				for (String need : needed)
+					load(need);
+			}
+			System.loadLibrary(libName);
+			markLoaded(libName);
+		} finally {
+			loading.remove(libName);
+		}
+	}
+}
@@ -24,49 +24,221 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.util.Log;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SigrokApplication extends Application {
 
 	private static final String JNI_LIBS_RESOURCE_ID_META =
 	    "org.sigrok.androidutils.jni_libs_resource_id";
+	private static final String JNI_LIB_LEVELS_RESOURCE_ID_META =
+	    "org.sigrok.androidutils.jni_lib_levels_resource_id";
+	private static final String JNI_LIB_DEPS_RESOURCE_ID_META =
+	    "org.sigrok.androidutils.jni_lib_deps_resource_id";
 	private static final String DEVICE_FILTER_RESOURCE_ID_META =
 	    "org.sigrok.androidutils.device_filter_resource_id";
+	private static final String DEVICE_FILTER_TABLE_RESOURCE_ID_META =
+	    "org.sigrok.androidutils.device_filter_table_resource_id";
+	private static final String ENVIRONMENT_RESOURCE_ID_META =
+	    "org.sigrok.androidutils.environment_resource_id";
 
 	public SigrokApplication()
 	{
 	}
 
-	public static void initSigrok(Context context)
+	private static volatile InitPipeline pipeline;
+
+	static ApplicationInfo getApplicationInfo(Context context)
 	{
 		ApplicationInfo appInfo = context.getApplicationInfo();
-		Environment.initEnvironment(appInfo.sourceDir);
-		UsbHelper.setContext(context);
 		try {
 			appInfo = context.getPackageManager().
 				getApplicationInfo(context.getPackageName(),
 				PackageManager.GET_META_DATA);
 		} catch (PackageManager.NameNotFoundException exc) {
 		}
+		return appInfo;
+	}
+
+	static String[] getJniLibs(Context context, ApplicationInfo appInfo)
+	{
 		if (appInfo.metaData != null &&
 				appInfo.metaData.containsKey(JNI_LIBS_RESOURCE_ID_META)) {
 			int resId = appInfo.metaData.getInt(JNI_LIBS_RESOURCE_ID_META);
-			String[] libs = context.getResources().getStringArray(resId);
-			int numLibs = libs.length;
-			for (int i = 0; i < numLibs; i++) {
-				String libName = libs[i];
-				System.loadLibrary(libName);
+			return context.getResources().getStringArray(resId);
+		}
+		return new String[0];
+	}
+
+	// Extra environment variables for the application, as a string
+	// array of "NAME=value" entries.
+	static void initExtraEnvironment(Context context,
+		ApplicationInfo appInfo)
+	{
+		if (appInfo.metaData != null &&
+				appInfo.metaData.containsKey(ENVIRONMENT_RESOURCE_ID_META)) {
+			int resId = appInfo.metaData.getInt(ENVIRONMENT_RESOURCE_ID_META);
+			Environment.setVariables(
+				context.getResources().getStringArray(resId));
+		}
+	}
+
+	// Without levels (older bundles), each library gets its own level.
+	static int[] getJniLibLevels(Context context,
+		ApplicationInfo appInfo, int numLibs)
+	{
+		int[] levels = null;
+		if (appInfo.metaData != null &&
+				appInfo.metaData.containsKey(JNI_LIB_LEVELS_RESOURCE_ID_META)) {
+			int resId = appInfo.metaData.getInt(JNI_LIB_LEVELS_RESOURCE_ID_META);
+			levels = context.getResources().getIntArray(resId);
+		}
+		if (levels == null || levels.length != numLibs) {
+			levels = new int[numLibs];
+			for (int i = 0; i < numLibs; i++)
+				levels[i] = i;
+		}
+		return levels;
+	}
+
+	static void initJniLibDeps(Context context, ApplicationInfo appInfo)
+	{
+		if (appInfo.metaData != null &&
+				appInfo.metaData.containsKey(JNI_LIB_DEPS_RESOURCE_ID_META)) {
+			int resId = appInfo.metaData.getInt(JNI_LIB_DEPS_RESOURCE_ID_META);
+			JniLibraries.setDependencies(
+				context.getResources().getStringArray(resId));
+		}
+	}
+
+	// Uses the extracted assets if they are up to date, else the APK,
+	// and has them extracted in the background for the next start.
+	private static void initEnvironment(final Context context,
+		final String apkFile)
+	{
+		File assetDir = AssetCache.getIfCurrent(context, apkFile);
+		Environment.initEnvironment(apkFile, assetDir);
+		if (assetDir != null)
+			return;
+		Thread t = new Thread("AssetCache") {
+			@Override
+			public void run() {
+				AssetCache.prepare(context, apkFile);
 			}
+		};
+		t.setPriority(Thread.MIN_PRIORITY);
+		t.start();
+	}
+
+	public static void initSigrok(Context context)
+	{
+		ApplicationInfo appInfo = context.getApplicationInfo();
+		initEnvironment(context, appInfo.sourceDir);
+		UsbHelper.setContext(context);
+		appInfo = getApplicationInfo(context);
+		initExtraEnvironment(context, appInfo);
+		String[] libs = getJniLibs(context, appInfo);
+		int numLibs = libs.length;
+		for (int i = 0; i < numLibs; i++) {
+			String libName = libs[i];
+			System.loadLibrary(libName);
+			JniLibraries.markLoaded(libName);
 		}
 	}
 
-	public static UsbSupplicant createUsbSupplicant(Context context)
+	// Sets up the environment, but leaves the libraries to be loaded
+	// when needed, through JniLibraries.load().
+	public static void initSigrokLazy(Context context)
 	{
 		ApplicationInfo appInfo = context.getApplicationInfo();
-		try {
-			appInfo = context.getPackageManager().
-				getApplicationInfo(context.getPackageName(),
-				PackageManager.GET_META_DATA);
-		} catch (PackageManager.NameNotFoundException exc) {
+		initEnvironment(context, appInfo.sourceDir);
+		UsbHelper.setContext(context);
+		appInfo = getApplicationInfo(context);
+		initExtraEnvironment(context, appInfo);
+		initJniLibDeps(context, appInfo);
+	}
+
+	// Loads the libraries in order of their dependency levels, so that
+	// each comes after those it needs.  They are loaded one at a time,
+	// as System.loadLibrary() is serialized by the runtime and the
+	// linker anyway.
+	static void loadLibraryLevels(final String[] libs, final int[] levels)
+	{
+		Integer[] order = new Integer[libs.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = Integer.valueOf(i);
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b)
+			{
+				int la = levels[a.intValue()], lb = levels[b.intValue()];
+				return (la < lb ? -1 : (la > lb ? 1 : 0));
+			}
+		});
+		for (Integer i : order) {
+			System.loadLibrary(libs[i.intValue()]);
+			JniLibraries.markLoaded(libs[i.intValue()]);
+		}
+	}
+
+	// Like initSigrok(), but loads the libraries on a background thread,
+	// by dependency level.  Assets not extracted yet are extracted
+	// first.  The returned future completes when all
+	// libraries are loaded.
+	public static Future<Void> initSigrokAsync(final Context context)
+	{
+		final String apkFile = context.getApplicationInfo().sourceDir;
+		Environment.initEnvironment(apkFile);
+		UsbHelper.setContext(context);
+		ExecutorService loader = Executors.newSingleThreadExecutor();
+		Future<Void> result = loader.submit(new Callable<Void>() {
+			public Void call() throws Exception
+			{
+				File assetDir = AssetCache.prepare(context, apkFile);
+				if (assetDir != null)
+					Environment.initEnvironment(apkFile, assetDir);
+				ApplicationInfo appInfo = getApplicationInfo(context);
+				initExtraEnvironment(context, appInfo);
+				String[] libs = getJniLibs(context, appInfo);
+				int[] levels = getJniLibLevels(context, appInfo,
+					libs.length);
+				loadLibraryLevels(libs, levels);
+				return null;
+			}
+		});
+		loader.shutdown();
+		return result;
+	}
+
+	// Starts initialization in stages, see InitPipeline, unless already
+	// started.  Only the cheap stages run on the calling thread.
+	public static synchronized InitPipeline initSigrokStaged(Context context)
+	{
+		if (pipeline == null) {
+			InitPipeline p = new InitPipeline(context);
+			p.start();
+			pipeline = p;
+		}
+		return pipeline;
+	}
+
+	// The pipeline started by initSigrokStaged(), or null.
+	public static InitPipeline getInitPipeline()
+	{
+		return pipeline;
+	}
+
+	public static UsbSupplicant createUsbSupplicant(Context context)
+	{
+		ApplicationInfo appInfo = getApplicationInfo(context);
+		if (appInfo.metaData != null &&
+				appInfo.metaData.containsKey(DEVICE_FILTER_TABLE_RESOURCE_ID_META)) {
+			int resId = appInfo.metaData.getInt(DEVICE_FILTER_TABLE_RESOURCE_ID_META);
+			return new UsbSupplicant(context, resId);
 		}
 		if (appInfo.metaData != null &&
 				appInfo.metaData.containsKey(DEVICE_FILTER_RESOURCE_ID_META)) {
@@ -77,10 +249,22 @@ public class SigrokApplication extends Application {
 		return null;
 	}
 
+	// Whether onCreate() starts the staged initialization rather than
+	// doing everything before returning.  With staged initialization,
+	// wait for getInitPipeline().awaitReady() before using the
+	// libraries.
+	protected boolean initInBackground()
+	{
+		return false;
+	}
+
 	@Override
 	public void onCreate()
 	{
 		super.onCreate();
-		initSigrok(getApplicationContext());
+		if (initInBackground())
+			initSigrokStaged(getApplicationContext());
+		else
+			initSigrok(getApplicationContext());
 	}
 }
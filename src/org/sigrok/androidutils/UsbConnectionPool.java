@@ -0,0 +1,108 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbManager;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import java.io.IOException;
+import java.util.HashMap;
+
+// Keeps one open connection per device while an event monitor runs, so
+// that opening a device again doesn't need a new connection.  Each
+// open() hands out its own dup of the connection's file descriptor,
+// which the caller owns and closes.  Pooled connections are closed when
+// their device is detached, or when the monitor stops; without one, a
+// connection is closed as soon as its descriptor is duplicated.
+//
+// Before API 13 descriptors can't be duplicated from Java, so there
+// each open() hands out the descriptor of a connection of its own.
+final class UsbConnectionPool
+{
+	private static final boolean canDup =
+		Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR2;
+
+	private final HashMap<String,UsbDeviceConnection> byName =
+		new HashMap<String,UsbDeviceConnection>();
+	private boolean keepOpen;
+
+	// Only while detaches are reported can connections be kept.
+	synchronized void setKeepOpen(boolean keep)
+	{
+		keepOpen = keep;
+		if (!keep)
+			evictAll();
+	}
+
+	synchronized int open(UsbManager manager, UsbDevice dev)
+	{
+		String name = dev.getDeviceName();
+		UsbDeviceConnection conn = byName.get(name);
+		if (conn == null) {
+			conn = manager.openDevice(dev);
+			if (conn == null)
+				return -1;
+			if (!canDup)
+				return conn.getFileDescriptor();
+			if (keepOpen)
+				byName.put(name, conn);
+		}
+		int fd = dup(conn.getFileDescriptor());
+		if (fd < 0 || !keepOpen)
+			close(name, conn);
+		return fd;
+	}
+
+	// The device is gone.  The descriptors handed out for it stay
+	// valid until their owners close them.
+	synchronized void evict(String name)
+	{
+		UsbDeviceConnection conn = byName.get(name);
+		if (conn != null)
+			close(name, conn);
+	}
+
+	synchronized void evictAll()
+	{
+		for (UsbDeviceConnection conn : byName.values())
+			conn.close();
+		byName.clear();
+	}
+
+	private void close(String name, UsbDeviceConnection conn)
+	{
+		if (byName.get(name) == conn)
+			byName.remove(name);
+		conn.close();
+	}
+
+	private static int dup(int fd)
+	{
+		if (fd < 0)
+			return -1;
+		try {
+			return ParcelFileDescriptor.fromFd(fd).detachFd();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+}
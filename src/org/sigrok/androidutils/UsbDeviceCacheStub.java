@@ -0,0 +1,31 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils;
+
+// Feeds the device cache in libsigrokandroidutils, see srau_usb_scan().
+final class UsbDeviceCacheStub implements UsbEventListener
+{
+	public native void onUsbDeviceAction(String name, boolean removed);
+
+	// Forgets all devices.  With valid, the events which follow
+	// describe every attached device, otherwise the cache is no
+	// longer kept up to date.
+	public native void onReset(boolean valid);
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import java.util.HashMap;
+
+// The attached devices, kept current by an event monitor so that lookups
+// don't need a round trip to the USB service.  Readers get an immutable
+// snapshot without locking; writers copy it.
+final class UsbDeviceRegistry
+{
+	private volatile HashMap<String,UsbDevice> devices =
+		new HashMap<String,UsbDevice>();
+	private volatile boolean valid = false;
+
+	// Only a registry refreshed while an event monitor is running is
+	// known to be complete.
+	boolean isValid()
+	{
+		return valid;
+	}
+
+	UsbDevice get(String name)
+	{
+		return devices.get(name);
+	}
+
+	String[] getNames()
+	{
+		HashMap<String,UsbDevice> d = devices;
+		return d.keySet().toArray(new String[d.size()]);
+	}
+
+	synchronized void refresh(UsbManager manager)
+	{
+		HashMap<String,UsbDevice> devlist = manager.getDeviceList();
+		devices = (devlist == null ? new HashMap<String,UsbDevice>() :
+			   new HashMap<String,UsbDevice>(devlist));
+		valid = true;
+	}
+
+	synchronized void invalidate()
+	{
+		valid = false;
+		devices = new HashMap<String,UsbDevice>();
+	}
+
+	synchronized void add(UsbDevice dev)
+	{
+		HashMap<String,UsbDevice> d = new HashMap<String,UsbDevice>(devices);
+		d.put(dev.getDeviceName(), dev);
+		devices = d;
+	}
+
+	synchronized void remove(UsbDevice dev)
+	{
+		if (!devices.containsKey(dev.getDeviceName()))
+			return;
+		HashMap<String,UsbDevice> d = new HashMap<String,UsbDevice>(devices);
+		d.remove(dev.getDeviceName());
+		devices = d;
+	}
+}
@@ -0,0 +1,28 @@
+/*
+ * This file is part of the sigrok-androidutils project.
+ *
+ * Copyright (C) 2026 The sigrok-androidutils authors
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sigrok.androidutils;
+
+// A listener which can also take a number of events in one call.  Event i
+// is for device names[indices[i]], and is a removal if bit (i & 7) of
+// removed[i >> 3] is set.  The events are in the order they happened.
+public interface UsbEventBatchListener extends UsbEventListener
+{
+	public void onUsbDeviceActions(String[] names, int[] indices, byte[] removed);
+}
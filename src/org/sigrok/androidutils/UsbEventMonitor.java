@@ -25,23 +25,142 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.util.Log;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 final class UsbEventMonitor
 {
+	private static final int QUEUE_SIZE = 256;
+	private static final int MAX_BATCH = 64;
+
 	private final Context context;
 	private final UsbManager manager;
 	private final UsbEventListener listener;
+	private final boolean async;
+	private final BlockingQueue<Runnable> events;
+	private final HashMap<String,Pending> pending;
+	private final HashSet<String> known;
+	private final UsbEventBatchListener batchListener;
+	private final ArrayList<String> batchNames;
+	private final ArrayList<Boolean> batchRemoved;
+	private final Runnable batchFlusher;
+	private HandlerThread receiverThread;
+	private Thread dispatchThread;
+	private Handler handler;
+	private UsbDeviceRegistry registry;
+	private UsbConnectionPool connections;
+	private UsbDeviceCacheStub nativeCache;
+	private final Object cacheLock = new Object();
+	private volatile int coalesceWindow;
+	private volatile int batchDelay;
+	private volatile int suppressed;
+	private volatile boolean stopping;
 	private final BroadcastReceiver permReceiver;
 	private final BroadcastReceiver hotplugReceiver;
 	private final IntentFilter permFilter;
 	private final IntentFilter hotplugFilter;
 
-	UsbEventMonitor(Context context, UsbManager manager, UsbEventListener listener)
+	private final class Event implements Runnable
+	{
+		final String name;
+		final boolean removed;
+
+		Event(String name, boolean removed)
+		{
+			this.name = name;
+			this.removed = removed;
+		}
+
+		public void run()
+		{
+			listener.onUsbDeviceAction(name, removed);
+		}
+	}
+
+	private final class Batch implements Runnable
+	{
+		final String[] names;
+		final int[] indices;
+		final byte[] removed;
+
+		Batch(ArrayList<String> names, ArrayList<Boolean> removed)
+		{
+			LinkedHashMap<String,Integer> index =
+				new LinkedHashMap<String,Integer>();
+			int n = names.size();
+			indices = new int[n];
+			this.removed = new byte[(n + 7) >> 3];
+			for (int i = 0; i < n; i++) {
+				Integer idx = index.get(names.get(i));
+				if (idx == null) {
+					idx = Integer.valueOf(index.size());
+					index.put(names.get(i), idx);
+				}
+				indices[i] = idx.intValue();
+				if (removed.get(i).booleanValue())
+					this.removed[i >> 3] |= (byte)(1 << (i & 7));
+			}
+			this.names = index.keySet().toArray(new String[index.size()]);
+		}
+
+		public void run()
+		{
+			batchListener.onUsbDeviceActions(names, indices, removed);
+		}
+	}
+
+	// Events for one device within the coalescing window of each other.
+	private final class Pending implements Runnable
+	{
+		final String name;
+		final boolean firstRemoved;
+		boolean lastRemoved;
+		boolean anyRemoved;
+		int count;
+
+		Pending(String name, boolean removed)
+		{
+			this.name = name;
+			firstRemoved = lastRemoved = anyRemoved = removed;
+			count = 1;
+		}
+
+		public void run()
+		{
+			flushPending(this);
+		}
+	}
+
+	// In async mode the broadcasts are received on a thread of our own,
+	// and the listener is called in order from another one, so neither
+	// the main looper nor the receiving waits for the listener.
+	UsbEventMonitor(Context context, UsbManager manager, UsbEventListener listener, boolean async)
 	{
 		this.context = context;
 		this.manager = manager;
 		this.listener = listener;
+		this.async = async;
+		events = (async ? new ArrayBlockingQueue<Runnable>(QUEUE_SIZE) : null);
+		pending = new HashMap<String,Pending>();
+		known = new HashSet<String>();
+		batchListener = (listener instanceof UsbEventBatchListener ?
+				 (UsbEventBatchListener)listener : null);
+		batchNames = new ArrayList<String>();
+		batchRemoved = new ArrayList<Boolean>();
+		batchFlusher = new Runnable() {
+			public void run() {
+				flushBatch();
+			}
+		};
 		permReceiver = new BroadcastReceiver() {
 			@Override
 			public void onReceive(Context context, Intent intent) {
@@ -68,16 +187,169 @@ final class UsbEventMonitor
 		hotplugFilter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
 	}
 
+	UsbEventMonitor(Context context, UsbManager manager, UsbEventListener listener)
+	{
+		this(context, manager, listener, false);
+	}
+
+	// Keep registry up to date while running.
+	void setRegistry(UsbDeviceRegistry registry)
+	{
+		this.registry = registry;
+	}
+
+	// Drop the connections of detached devices from the pool.
+	void setConnectionPool(UsbConnectionPool connections)
+	{
+		this.connections = connections;
+	}
+
+	// Tell the native device cache about every attached device, and
+	// then about each one attached or detached.  Needs the registry.
+	// Returns false once the monitor is stopping.
+	boolean setNativeCache(UsbDeviceCacheStub cache)
+	{
+		synchronized (cacheLock) {
+			if (stopping)
+				return false;
+			nativeCache = cache;
+			if (cache == null)
+				return true;
+			cache.onReset(true);
+			for (String name : registry.getNames())
+				cache.onUsbDeviceAction(name, false);
+			return true;
+		}
+	}
+
+	// Events for the same device which follow each other within ms
+	// milliseconds are merged, see flushPending().
+	// Zero, the default, delivers every event as it comes.
+	void setCoalesceWindow(int ms)
+	{
+		coalesceWindow = ms;
+	}
+
+	// With a batch listener, events are collected for up to ms
+	// milliseconds, or until MAX_BATCH of them are waiting, and then
+	// handed over in one call.  Zero, the default, delivers every event
+	// as it comes.
+	void setBatchDelay(int ms)
+	{
+		batchDelay = ms;
+	}
+
+	int getSuppressedEventCount()
+	{
+		return suppressed;
+	}
+
 	synchronized void start()
 	{
-		context.registerReceiver(permReceiver, permFilter);
-		context.registerReceiver(hotplugReceiver, hotplugFilter);
+		if (!async) {
+			handler = new Handler(Looper.getMainLooper());
+			context.registerReceiver(permReceiver, permFilter);
+			context.registerReceiver(hotplugReceiver, hotplugFilter);
+		} else {
+			startAsync();
+		}
+		if (registry != null)
+			registry.refresh(manager);
+		// The listener is taken to know the devices it may open
+		// already.
+		HashMap<String,UsbDevice> devlist = manager.getDeviceList();
+		synchronized (known) {
+			known.clear();
+			if (devlist != null)
+				for (UsbDevice dev : devlist.values())
+					if (manager.hasPermission(dev))
+						known.add(dev.getDeviceName());
+		}
+	}
+
+	private void startAsync()
+	{
+		dispatchThread = new Thread("UsbEventDispatch") {
+			@Override
+			public void run() {
+				dispatchEvents();
+			}
+		};
+		dispatchThread.start();
+		receiverThread = new HandlerThread("UsbEventMonitor");
+		receiverThread.start();
+		handler = new Handler(receiverThread.getLooper());
+		context.registerReceiver(permReceiver, permFilter, null, handler);
+		context.registerReceiver(hotplugReceiver, hotplugFilter, null, handler);
 	}
 
 	synchronized void stop()
 	{
+		// Nothing is handed to the listener from here on.
+		stopping = true;
 		context.unregisterReceiver(hotplugReceiver);
 		context.unregisterReceiver(permReceiver);
+		if (registry != null)
+			registry.invalidate();
+		synchronized (cacheLock) {
+			if (nativeCache != null) {
+				nativeCache.onReset(false);
+				nativeCache = null;
+			}
+		}
+		synchronized (pending) {
+			for (Pending p : pending.values())
+				handler.removeCallbacks(p);
+			pending.clear();
+		}
+		// Batched events are dropped just like pending ones.
+		synchronized (batchNames) {
+			handler.removeCallbacks(batchFlusher);
+			batchNames.clear();
+			batchRemoved.clear();
+		}
+		if (receiverThread != null) {
+			receiverThread.quit();
+			receiverThread.interrupt();
+			receiverThread = null;
+		}
+		if (dispatchThread != null) {
+			// Wait for an event being delivered, so that none
+			// follows stop().  Unless the listener stops us.
+			dispatchThread.interrupt();
+			if (dispatchThread != Thread.currentThread()) {
+				try {
+					dispatchThread.join();
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			dispatchThread = null;
+		}
+	}
+
+	private void runEvent(Runnable e)
+	{
+		try {
+			e.run();
+		} catch (RuntimeException exc) {
+			Log.w("UsbEventMonitor", "caught exception " + exc);
+		}
+	}
+
+	private void dispatchEvents()
+	{
+		try {
+			while (!stopping) {
+				Runnable e = events.take();
+				if (stopping)
+					break;
+				runEvent(e);
+			}
+		} catch (InterruptedException exc) {
+		}
+		// Stopped, the listener may be gone already.
+		events.clear();
 	}
 
 	private void permissionCallback(UsbDevice dev, boolean granted)
@@ -90,6 +362,12 @@ final class UsbEventMonitor
 	private void attachCallback(UsbDevice dev)
 	{
 		Log.d("UsbEventMonitor", "device " + dev + "added");
+		if (registry != null)
+			registry.add(dev);
+		synchronized (cacheLock) {
+			if (nativeCache != null)
+				nativeCache.onUsbDeviceAction(dev.getDeviceName(), false);
+		}
 		if (manager.hasPermission(dev))
 			addRemoveDevice(dev, false);
 	}
@@ -97,11 +375,136 @@ final class UsbEventMonitor
 	private void detachCallback(UsbDevice dev)
 	{
 		Log.d("UsbEventMonitor", "device " + dev + "removed");
+		if (registry != null)
+			registry.remove(dev);
+		if (connections != null)
+			connections.evict(dev.getDeviceName());
+		synchronized (cacheLock) {
+			if (nativeCache != null)
+				nativeCache.onUsbDeviceAction(dev.getDeviceName(), true);
+		}
 		addRemoveDevice(dev, true);
 	}
 
-	private synchronized void addRemoveDevice(UsbDevice dev, boolean removed)
+	private void addRemoveDevice(UsbDevice dev, boolean removed)
 	{
-		listener.onUsbDeviceAction(dev.getDeviceName(), removed);
+		int window = coalesceWindow;
+		if (window <= 0) {
+			deliver(dev.getDeviceName(), removed);
+			return;
+		}
+		synchronized (pending) {
+			Pending p = pending.get(dev.getDeviceName());
+			if (p == null) {
+				p = new Pending(dev.getDeviceName(), removed);
+				pending.put(p.name, p);
+			} else {
+				handler.removeCallbacks(p);
+				p.lastRemoved = removed;
+				p.anyRemoved |= removed;
+				p.count++;
+			}
+			handler.postDelayed(p, window);
+		}
+	}
+
+	// A removal invalidates whatever the listener opened, so it is
+	// never merged away behind a later attach: that is delivered as a
+	// removal followed by the attach.  A device that ends the window
+	// removed gets a removal if the listener knew it before.  Only a
+	// device that was attached and then removed within the window,
+	// which the listener never saw, needs no event at all.
+	private void flushPending(Pending p)
+	{
+		synchronized (pending) {
+			if (pending.get(p.name) != p)
+				return;
+			pending.remove(p.name);
+		}
+		int delivered = 0;
+		if (!p.lastRemoved) {
+			if (p.anyRemoved) {
+				deliver(p.name, true);
+				delivered++;
+			}
+			deliver(p.name, false);
+			delivered++;
+		} else if (p.firstRemoved || isKnown(p.name)) {
+			deliver(p.name, true);
+			delivered++;
+		}
+		suppressed += p.count - delivered;
+	}
+
+	private boolean isKnown(String name)
+	{
+		synchronized (known) {
+			return known.contains(name);
+		}
+	}
+
+	private void deliver(String name, boolean removed)
+	{
+		synchronized (known) {
+			if (removed)
+				known.remove(name);
+			else
+				known.add(name);
+		}
+		int delay = batchDelay;
+		if (batchListener == null || delay <= 0) {
+			// Batching was just turned off, keep the order.
+			flushBatch();
+			dispatch(new Event(name, removed));
+			return;
+		}
+		boolean full;
+		synchronized (batchNames) {
+			if (batchNames.isEmpty())
+				handler.postDelayed(batchFlusher, delay);
+			batchNames.add(name);
+			batchRemoved.add(Boolean.valueOf(removed));
+			full = (batchNames.size() >= MAX_BATCH);
+		}
+		if (full)
+			flushBatch();
+	}
+
+	private void flushBatch()
+	{
+		Batch b;
+		synchronized (batchNames) {
+			if (batchNames.isEmpty())
+				return;
+			handler.removeCallbacks(batchFlusher);
+			b = new Batch(batchNames, batchRemoved);
+			batchNames.clear();
+			batchRemoved.clear();
+		}
+		dispatch(b);
+	}
+
+	private void dispatch(Runnable e)
+	{
+		if (stopping)
+			return;
+		if (async) {
+			// Blocks the receiver thread, not the main one, when
+			// the listener falls behind, but gives up once the
+			// monitor is stopped.
+			try {
+				while (!stopping) {
+					if (events.offer(e, 100, TimeUnit.MILLISECONDS))
+						return;
+				}
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+		synchronized (this) {
+			if (!stopping)
+				e.run();
+		}
 	}
 }
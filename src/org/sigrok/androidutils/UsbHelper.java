@@ -21,7 +21,6 @@ package org.sigrok.androidutils;
 
 import android.content.Context;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.util.Log;
 import java.util.HashMap;
@@ -30,7 +29,56 @@ public final class UsbHelper
 {
 	private static UsbManager manager;
 	private static Context context;
-	private static UsbEventMonitor eventMonitor;
+	// Written under the class lock, but read without it, so that
+	// listener callbacks, which run under the monitor's own lock, never
+	// wait for stopEventMonitor().
+	private static volatile UsbEventMonitor eventMonitor;
+	private static final UsbDeviceRegistry registry = new UsbDeviceRegistry();
+	private static final UsbConnectionPool connections = new UsbConnectionPool();
+	private static final UsbDeviceCacheStub nativeCache = new UsbDeviceCacheStub();
+
+	// Access modes of open(2).  Connections to USB devices are always
+	// read-write, so any of them can share one.
+	private static final int O_ACCMODE = 3;
+	private static final int O_RDWR = 2;
+	private static volatile boolean asyncEvents = false;
+	private static volatile int coalesceWindow = 0;
+	private static volatile int batchDelay = 0;
+
+	// Whether event monitors started from now on deliver events from
+	// a thread of their own, rather than from the main looper.
+	public static void setAsyncEventDispatch(boolean async)
+	{
+		asyncEvents = async;
+	}
+
+	// Merge hotplug events for the same device arriving within ms
+	// milliseconds of each other, so that a flaky cable or a hub reset
+	// doesn't cause a rescan for every one of them.
+	public static void setEventCoalesceWindow(int ms)
+	{
+		coalesceWindow = ms;
+		UsbEventMonitor monitor = eventMonitor;
+		if (monitor != null)
+			monitor.setCoalesceWindow(ms);
+	}
+
+	// Collect events for up to ms milliseconds before passing them on,
+	// for listeners implementing UsbEventBatchListener.
+	public static void setEventBatchDelay(int ms)
+	{
+		batchDelay = ms;
+		UsbEventMonitor monitor = eventMonitor;
+		if (monitor != null)
+			monitor.setBatchDelay(ms);
+	}
+
+	// Number of events merged away by the current event monitor.
+	public static int getSuppressedEventCount()
+	{
+		UsbEventMonitor monitor = eventMonitor;
+		return (monitor == null ? 0 : monitor.getSuppressedEventCount());
+	}
 
 	public static void setContext(Context ctx)
 	{
@@ -47,14 +95,20 @@ public final class UsbHelper
 			Log.w("UsbHelper", "no manager");
 			return -1;
 		}
-		HashMap<String,UsbDevice> devlist = manager.getDeviceList();
-		UsbDevice dev = (devlist == null ? null : devlist.get(name));
-		if (dev == null)
+		if ((mode & O_ACCMODE) > O_RDWR) {
+			Log.w("UsbHelper", "bad open mode " + mode);
 			return -1;
+		}
+		UsbDevice dev = registry.get(name);
+		if (dev == null) {
+			HashMap<String,UsbDevice> devlist = manager.getDeviceList();
+			dev = (devlist == null ? null : devlist.get(name));
+			if (dev == null)
+				return -1;
+		}
 		if (!manager.hasPermission(dev))
 			return -1;
-		UsbDeviceConnection conn = manager.openDevice(dev);
-		return (conn == null ? -1 : conn.getFileDescriptor());
+		return connections.open(manager, dev);
 	}
 
 	private static synchronized void startEventMonitor(Context context, UsbManager manager, UsbEventListener listener)
@@ -62,6 +116,7 @@ public final class UsbHelper
 		if (eventMonitor != null) {
 			eventMonitor.stop();
 			eventMonitor = null;
+			connections.setKeepOpen(false);
 		}
 		if (context == null) {
 			Log.w("UsbHelper", "no context");
@@ -71,8 +126,13 @@ public final class UsbHelper
 			Log.w("UsbHelper", "no manager");
 			return;
 		}
-		eventMonitor = new UsbEventMonitor(context, manager, listener);
+		eventMonitor = new UsbEventMonitor(context, manager, listener, asyncEvents);
+		eventMonitor.setCoalesceWindow(coalesceWindow);
+		eventMonitor.setBatchDelay(batchDelay);
+		eventMonitor.setRegistry(registry);
+		eventMonitor.setConnectionPool(connections);
 		eventMonitor.start();
+		connections.setKeepOpen(true);
 	}
 
 	private static synchronized void stopEventMonitor(Context context)
@@ -81,6 +141,16 @@ public final class UsbHelper
 			eventMonitor.stop();
 			eventMonitor = null;
 		}
+		// Without a monitor, detached devices would go unnoticed.
+		connections.setKeepOpen(false);
+	}
+
+	// Called by libsigrokandroidutils to have its device cache kept
+	// up to date, which is only possible while an event monitor runs.
+	private static boolean startNativeCache()
+	{
+		UsbEventMonitor monitor = eventMonitor;
+		return (monitor != null && monitor.setNativeCache(nativeCache));
 	}
 
 	private static String[] scanDevices(UsbManager manager)
@@ -89,6 +159,8 @@ public final class UsbHelper
 			Log.w("UsbHelper", "no manager");
 			return null;
 		}
+		if (registry.isValid())
+			return registry.getNames();
 		HashMap<String,UsbDevice> devlist = manager.getDeviceList();
 		if (devlist == null)
 			return null;
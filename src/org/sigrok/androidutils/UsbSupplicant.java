@@ -44,9 +44,19 @@ import android.content.res.XmlResourceParser;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Vector;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -56,13 +66,40 @@ public class UsbSupplicant
 	static final String ACTION_USB_PERMISSION =
 	"org.sigrok.androidutils.USB_PERMISSION";
 
+	// Must match DeviceFilterTask.
+	private static final int TABLE_MAGIC = 0x53524446;
+	private static final int TABLE_VERSION = 1;
+
 	protected final Context context;
 	protected final UsbManager manager;
 	private final BroadcastReceiver permReceiver;
 	private final BroadcastReceiver hotplugReceiver;
 	private final IntentFilter permFilter;
 	private final IntentFilter hotplugFilter;
-	private final Vector<DeviceFilter> deviceFilters;
+	private final DeviceMatcher deviceFilters;
+
+	// Permission requests are queued, and only one is outstanding at a
+	// time, so that the system shows one dialog after the other.  If no
+	// answer comes within permTimeout, as when the dialog goes away with
+	// its process, the next request is sent anyway.
+	private final LinkedHashMap<String,PermissionRequest> permQueue;
+	private PermissionRequest permInFlight;
+	private long permTimeout = 60000;
+	private final Handler permHandler;
+	private final Runnable permTimeoutTask;
+	private int permRequests, permMaxDepth;
+	private long permTotalLatency, permMaxLatency;
+
+	private static class PermissionRequest {
+		public final UsbDevice device;
+		public final long queued;
+		public long sent;
+
+		public PermissionRequest(UsbDevice device) {
+			this.device = device;
+			queued = SystemClock.elapsedRealtime();
+		}
+	}
 
 	// The code in the following inner class is taken from AOSP,
 	// which is licensed under the Apache License, Version 2.0.
@@ -161,6 +198,95 @@ public class UsbSupplicant
 		}
 	}
 
+	// The device filters, compiled for matching.  Filters on just vendor
+	// and product ID (which is all of device_filter.xml) go into a hash
+	// table of packed IDs, anything else is checked one by one.
+	private static class DeviceMatcher {
+		private final long[] table;
+		private final int mask;
+		private final DeviceFilter[] others;
+
+		private static int hash(int key) {
+			key *= 0x9e3779b1;
+			return key ^ (key >>> 16);
+		}
+
+		private static int key(int vid, int pid) {
+			return ((vid & 0xffff) << 16) | (pid & 0xffff);
+		}
+
+		private static boolean isIdOnly(DeviceFilter f) {
+			return (f.mVendorId != -1 && f.mProductId != -1 &&
+					f.mClass == -1 && f.mSubclass == -1 &&
+					f.mProtocol == -1);
+		}
+
+		public DeviceMatcher(int[] ids, DeviceFilter[] others) {
+			int size = 8;
+			while (size < 2 * ids.length)
+				size <<= 1;
+			table = new long[size];
+			Arrays.fill(table, -1L);
+			mask = size - 1;
+			for (int k : ids) {
+				int i = hash(k) & mask;
+				while (table[i] != -1L && table[i] != (k & 0xffffffffL))
+					i = (i + 1) & mask;
+				table[i] = k & 0xffffffffL;
+			}
+			this.others = others;
+		}
+
+		public static DeviceMatcher compile(Vector<DeviceFilter> filters) {
+			Vector<DeviceFilter> rest = new Vector<DeviceFilter>();
+			int[] ids = new int[filters.size()];
+			int n = 0;
+			for (DeviceFilter f : filters) {
+				if (isIdOnly(f))
+					ids[n++] = key(f.mVendorId, f.mProductId);
+				else
+					rest.add(f);
+			}
+			return new DeviceMatcher(Arrays.copyOf(ids, n),
+					rest.toArray(new DeviceFilter[rest.size()]));
+		}
+
+		// Reads a table written by the devicefilter Ant task.
+		public static DeviceMatcher read(InputStream is) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int r;
+			while ((r = is.read(buf)) > 0)
+				bytes.write(buf, 0, r);
+			IntBuffer data = ByteBuffer.wrap(bytes.toByteArray()).asIntBuffer();
+			if (data.remaining() < 4 || data.get() != TABLE_MAGIC ||
+					data.get() != TABLE_VERSION)
+				throw new IOException("Invalid device filter table");
+			int numIds = data.get(), numOthers = data.get();
+			if (numIds < 0 || numOthers < 0 ||
+					data.remaining() != numIds + 5 * numOthers)
+				throw new IOException("Invalid device filter table");
+			int[] ids = new int[numIds];
+			data.get(ids);
+			DeviceFilter[] others = new DeviceFilter[numOthers];
+			for (int i = 0; i < numOthers; i++)
+				others[i] = new DeviceFilter(data.get(), data.get(),
+						data.get(), data.get(), data.get());
+			return new DeviceMatcher(ids, others);
+		}
+
+		public boolean matches(UsbDevice device) {
+			long k = key(device.getVendorId(), device.getProductId()) & 0xffffffffL;
+			for (int i = hash((int)k) & mask; table[i] != -1L; i = (i + 1) & mask)
+				if (table[i] == k)
+					return true;
+			for (DeviceFilter f : others)
+				if (f.matches(device))
+					return true;
+			return false;
+		}
+	}
+
 	public UsbSupplicant(Context ctx, int device_filter_resource)
 	{
 		context = ctx;
@@ -170,8 +296,10 @@ public class UsbSupplicant
 			public void onReceive(Context context, Intent intent) {
 				String action = intent.getAction();
 				if (ACTION_USB_PERMISSION.equals(action)) {
-					permissionCallback((UsbDevice)intent.getParcelableExtra(
-						UsbManager.EXTRA_DEVICE), intent.getBooleanExtra(
+					UsbDevice dev = (UsbDevice)intent.getParcelableExtra(
+						UsbManager.EXTRA_DEVICE);
+					permissionDone(dev);
+					permissionCallback(dev, intent.getBooleanExtra(
 						UsbManager.EXTRA_PERMISSION_GRANTED, false));
 				}
 			}
@@ -182,30 +310,61 @@ public class UsbSupplicant
 				if (intent != null && UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(intent.getAction())) {
 					attachCallback((UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE));
 				} else if (intent != null && UsbManager.ACTION_USB_DEVICE_DETACHED.equals(intent.getAction())) {
-					detachCallback((UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE));
+					UsbDevice dev = (UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+					permissionDropped(dev);
+					detachCallback(dev);
 				}
 			}
 		};
+		permQueue = new LinkedHashMap<String,PermissionRequest>();
+		permInFlight = null;
+		permHandler = new Handler(Looper.getMainLooper());
+		permTimeoutTask = new Runnable() {
+			public void run() {
+				permissionTimedOut();
+			}
+		};
 		permFilter = new IntentFilter(ACTION_USB_PERMISSION);
 		hotplugFilter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_ATTACHED);
 		hotplugFilter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
-		deviceFilters = new Vector<DeviceFilter>();
-		addDeviceFilters(ctx.getResources(), device_filter_resource);
+		deviceFilters = readDeviceMatcher(ctx.getResources(),
+			device_filter_resource);
+	}
+
+	// The filters are either a compiled table in a raw resource, or
+	// the original XML.
+	private static DeviceMatcher readDeviceMatcher(Resources res, int res_id)
+	{
+		if ("raw".equals(res.getResourceTypeName(res_id))) {
+			try {
+				InputStream is = res.openRawResource(res_id);
+				try {
+					return DeviceMatcher.read(is);
+				} finally {
+					is.close();
+				}
+			} catch (IOException e) {
+				Log.wtf("UsbSupplicant",
+					"Failed to read device filter table", e);
+				return DeviceMatcher.compile(new Vector<DeviceFilter>());
+			}
+		}
+		return DeviceMatcher.compile(readDeviceFilters(res, res_id));
 	}
 
-	private void addDeviceFilters(Resources res, int res_id)
+	private static Vector<DeviceFilter> readDeviceFilters(Resources res, int res_id)
 	{
+		Vector<DeviceFilter> filters = new Vector<DeviceFilter>();
 		XmlResourceParser parser = res.getXml(res_id);
 		if (parser == null) {
 			Log.w("UsbSupplicant", "Unable to get device filter resource");
-			return;
+			return filters;
 		}
-		deviceFilters.clear();
 		try {
 			while (parser.next() != XmlPullParser.END_DOCUMENT) {
 				if (parser.getEventType() == XmlPullParser.START_TAG) {
 					if ("usb-device".equals(parser.getName()))
-						deviceFilters.add(DeviceFilter.read(parser));
+						filters.add(DeviceFilter.read(parser));
 				}
 			}
 		} catch (IOException e) {
@@ -215,6 +374,7 @@ public class UsbSupplicant
 			Log.wtf("UsbSupplicant",
 				"Failed to parse device filter resource", e);
 		}
+		return filters;
 	}
 
 	protected boolean interesting(UsbDevice dev)
@@ -222,19 +382,152 @@ public class UsbSupplicant
 		if (dev == null)
 			return false;
 
-		for (DeviceFilter f : deviceFilters)
-			if (f.matches(dev))
-				return true;
-
-		return false;
+		return deviceFilters.matches(dev);
 	}
 
+	// Queues a permission request for dev, unless one is already
+	// queued or outstanding.
 	protected void askFor(UsbDevice dev)
+	{
+		synchronized (permQueue) {
+			String name = dev.getDeviceName();
+			if (permQueue.containsKey(name) || (permInFlight != null &&
+					name.equals(permInFlight.device.getDeviceName())))
+				return;
+			permQueue.put(name, new PermissionRequest(dev));
+			int depth = getPermissionQueueDepth();
+			if (depth > permMaxDepth)
+				permMaxDepth = depth;
+			requestNextPermission();
+		}
+	}
+
+	protected void requestPermission(UsbDevice dev)
 	{
 		manager.requestPermission(dev, PendingIntent.getBroadcast(context, 0,
 			new Intent(ACTION_USB_PERMISSION), 0));
 	}
 
+	private void requestNextPermission()
+	{
+		HashMap<String,UsbDevice> attached = null;
+		while (permInFlight == null && !permQueue.isEmpty()) {
+			Iterator<PermissionRequest> it = permQueue.values().iterator();
+			PermissionRequest req = it.next();
+			it.remove();
+			if (manager.hasPermission(req.device))
+				continue;
+			// Skip devices which went away unnoticed, rather than
+			// wait for an answer that won't come.
+			if (attached == null)
+				attached = manager.getDeviceList();
+			if (attached != null &&
+					!attached.containsKey(req.device.getDeviceName()))
+				continue;
+			permInFlight = req;
+			req.sent = SystemClock.elapsedRealtime();
+			permHandler.removeCallbacks(permTimeoutTask);
+			permHandler.postDelayed(permTimeoutTask, permTimeout);
+			requestPermission(req.device);
+		}
+	}
+
+	private void clearInFlight()
+	{
+		permInFlight = null;
+		permHandler.removeCallbacks(permTimeoutTask);
+	}
+
+	private void permissionDone(UsbDevice dev)
+	{
+		synchronized (permQueue) {
+			if (permInFlight == null || (dev != null &&
+					!dev.getDeviceName().equals(permInFlight.device.getDeviceName())))
+				return;
+			long latency = SystemClock.elapsedRealtime() - permInFlight.queued;
+			permRequests++;
+			permTotalLatency += latency;
+			if (latency > permMaxLatency)
+				permMaxLatency = latency;
+			clearInFlight();
+			requestNextPermission();
+		}
+	}
+
+	// A detached device needs no permission any more.  If its request
+	// is the outstanding one, the next one is sent without waiting.
+	private void permissionDropped(UsbDevice dev)
+	{
+		if (dev == null)
+			return;
+		synchronized (permQueue) {
+			String name = dev.getDeviceName();
+			permQueue.remove(name);
+			if (permInFlight != null &&
+					name.equals(permInFlight.device.getDeviceName())) {
+				clearInFlight();
+				requestNextPermission();
+			}
+		}
+	}
+
+	private void permissionTimedOut()
+	{
+		synchronized (permQueue) {
+			if (permInFlight == null)
+				return;
+			long left = permInFlight.sent + permTimeout -
+				SystemClock.elapsedRealtime();
+			if (left > 0) {
+				permHandler.postDelayed(permTimeoutTask, left);
+				return;
+			}
+			Log.w("UsbSupplicant", "no permission answer for device " +
+					permInFlight.device.getDeviceName());
+			clearInFlight();
+			requestNextPermission();
+		}
+	}
+
+	// How long to wait for the answer to a permission request before
+	// going on with the next one, in milliseconds.
+	public void setPermissionTimeout(long timeout)
+	{
+		synchronized (permQueue) {
+			permTimeout = timeout;
+		}
+	}
+
+	// Requests queued or outstanding.
+	public int getPermissionQueueDepth()
+	{
+		synchronized (permQueue) {
+			return permQueue.size() + (permInFlight == null ? 0 : 1);
+		}
+	}
+
+	public int getMaxPermissionQueueDepth()
+	{
+		synchronized (permQueue) {
+			return permMaxDepth;
+		}
+	}
+
+	// Time from queueing a request to its answer, in milliseconds.
+	public long getAveragePermissionLatency()
+	{
+		synchronized (permQueue) {
+			return (permRequests == 0 ? 0 : permTotalLatency / permRequests);
+		}
+	}
+
+	public long getMaxPermissionLatency()
+	{
+		synchronized (permQueue) {
+			return permMaxLatency;
+		}
+	}
+
 	public void start()
 	{
 		context.registerReceiver(permReceiver, permFilter);
@@ -252,6 +545,10 @@ public class UsbSupplicant
 	{
 		context.unregisterReceiver(hotplugReceiver);
 		context.unregisterReceiver(permReceiver);
+		synchronized (permQueue) {
+			permQueue.clear();
+			clearInFlight();
+		}
 	}
 
 	protected void permissionCallback(UsbDevice dev, boolean granted)